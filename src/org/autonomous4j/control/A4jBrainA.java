@@ -109,6 +109,7 @@ public class A4jBrainA implements A4jBrain3D {
         try {
             Thread.sleep(ms);
             if (isRecording) {
+                // The recorder times the movement itself; ms is what we asked for
                 recorder.recordDuration(ms);
             }
         } catch (InterruptedException e) {
@@ -26,10 +26,13 @@ package org.autonomous4j.control;
 import java.util.ArrayList;
 import org.autonomous4j.interfaces.A4jBrain2D;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.autonomous4j.listeners.xy.A4jLandListener;
 import org.autonomous4j.physical.A4jLandController;
+import org.autonomous4j.physical.A4jLandScript;
+import org.autonomous4j.physical.A4jSonarSweep;
 import org.autonomous4j.tracking.A4jBlackBox;
 import org.autonomous4j.tracking.A4jBlackBox.Movement;
 
@@ -155,12 +158,10 @@ public class A4jBrainL implements A4jBrain2D {
     }
     
     public A4jBrainL patrol() {
-        long distF, distL, distR;
+        A4jSonarSweep sweep;
 
         // Save this so we can finish here (more or less)
-        distL = controller.pingLeft();
-        distR = controller.pingRight();
-        distF = controller.pingForward();
+        sweep = controller.pingAll();
 
         // The rest of the pattern is identical until the final positioning movement
         // We do capture the initial position of the drone from the wall, however
@@ -168,10 +169,8 @@ public class A4jBrainL implements A4jBrain2D {
         for (int i=0; i<4;i++) {
             forward(20);
 
-            distL = controller.pingLeft();
-            distR = controller.pingRight();
-            controller.pingForward();
-            turn(distL < distR ? Direction.LEFT : Direction.RIGHT, 180L);
+            sweep = controller.pingAll();
+            turn(sweep.getLeft() < sweep.getRight() ? Direction.LEFT : Direction.RIGHT, 180L);
         }        
 
         return this;        
@@ -185,9 +184,10 @@ public class A4jBrainL implements A4jBrain2D {
         Direction startDir, turnDir;
         final long STOP_DIST = 40;
         
-        distL = controller.pingLeft();
-        distR = controller.pingRight();
-        distF = controller.pingForward();
+        A4jSonarSweep sweep = controller.pingAll();
+        distL = sweep.getLeft();
+        distR = sweep.getRight();
+        distF = sweep.getForward();
 
         // ClosER wall wins the prize
         turnDir = distL < distR ? Direction.LEFT : Direction.RIGHT;
@@ -230,9 +230,10 @@ public class A4jBrainL implements A4jBrain2D {
         final long STOP_DIST = 50;
         
         for (int i=0; i<5;i++) {
-            distL = controller.pingLeft();
-            distR = controller.pingRight();
-            distF = controller.pingForward();
+            A4jSonarSweep sweep = controller.pingAll();
+            distL = sweep.getLeft();
+            distR = sweep.getRight();
+            distF = sweep.getForward();
 
             // Furthest wall wins the prize & determines best direction for turn
             dir = distL > distR ? Direction.LEFT : Direction.RIGHT;
@@ -254,16 +255,19 @@ public class A4jBrainL implements A4jBrain2D {
     }
     
     private Long pingMove(Long stopDistance) {
-        Long distance = controller.pingForward();
-
-        forward((distance - stopDistance) > 0 ? 
-                distance - stopDistance : 
-                0);    // Stop specified distance (in cm) from wall        
+        // Stop specified distance (in cm) from wall. With sonar streaming the 
+        // controller drives continuously and stops on the live reading.
+        System.out.println("Brain.moveUntil " + stopDistance + " cm from wall");
         
-        return distance;
+        return controller.moveUntil(stopDistance);
     }
     
     public A4jBrainL doBox(A4jBrainL.Direction dir, long cmMaxDistance) {
+        if (controller.isScripting()) {
+            controller.runScript(boxScript(dir, cmMaxDistance));
+            return this;
+        }
+        
         forward(cmMaxDistance/2); // N center of box
         turn(dir);
         forward(cmMaxDistance/2); // To NW corner
@@ -283,6 +287,61 @@ public class A4jBrainL implements A4jBrain2D {
         return this;
     }
 
+    /**
+     * Non-blocking doBox: each leg is sent once the previous one is echoed 
+     * (or, with 'scripting' enabled, the box is uploaded as one script), so 
+     * no thread is tied up while ALVIN drives the pattern.
+     * @param dir Direction to turn at each corner.
+     * @param cmMaxDistance Length (in cm) of a side of the box.
+     * @return Future completing (with this brain) after the final turn.
+     */
+    public CompletableFuture<A4jBrainL> doBoxAsync(A4jBrainL.Direction dir, long cmMaxDistance) {
+        if (controller.isScripting()) {
+            return controller.runScriptAsync(boxScript(dir, cmMaxDistance)).thenApply(v -> this);
+        }
+        
+        // Same legs as doBox: N center, NW, SW, SE, NE, N center, box center
+        long[] legs = {cmMaxDistance/2, cmMaxDistance/2, cmMaxDistance, cmMaxDistance, 
+            cmMaxDistance, cmMaxDistance/2, cmMaxDistance/2};
+        CompletableFuture<Void> box = CompletableFuture.completedFuture(null);
+        
+        for (long leg : legs) {
+            box = box.thenCompose(v -> controller.forwardAsync(leg))
+                    .thenCompose(v -> turnAsync(dir, 90));
+        }
+        // Turn twice (in total) to return to original bearing (mas o menos)
+        return box.thenCompose(v -> turnAsync(dir, 90)).thenApply(v -> this);
+    }
+
+    private CompletableFuture<Void> turnAsync(A4jBrainL.Direction dir, long degrees) {
+        return dir == Direction.LEFT ? 
+                controller.leftAsync(degrees) : 
+                controller.rightAsync(degrees);
+    }
+
+    private A4jLandScript boxScript(A4jBrainL.Direction dir, long cmMaxDistance) {
+        A4jLandScript box = new A4jLandScript();
+        // N center, NW, SW, SE, NE, N center, box center (approximadamente)
+        long[] legs = {cmMaxDistance/2, cmMaxDistance/2, cmMaxDistance, cmMaxDistance, 
+            cmMaxDistance, cmMaxDistance/2, cmMaxDistance/2};
+        
+        for (long leg : legs) {
+            box.forward(leg);
+            turn(box, dir);
+        }
+        turn(box, dir);  // Turn twice to return to original bearing (mas o menos)
+        
+        return box;
+    }
+
+    private void turn(A4jLandScript script, A4jBrainL.Direction dir) {
+        if (dir == Direction.LEFT) {
+            script.left(90);
+        } else { // Direction.RIGHT
+            script.right(90);
+        }
+    }
+
     private A4jBrainL turn(A4jBrainL.Direction dir) {
         if (dir == Direction.LEFT) {
             left(90);
@@ -23,11 +23,10 @@
  */
 package org.autonomous4j.listeners.xy;
 
-import java.util.Observable;
-import java.util.Observer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.autonomous4j.interfaces.A4jPublisher;
+import org.autonomous4j.interfaces.A4jSubscriber;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -38,7 +37,7 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
  * 
  * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
 */
-public class A4jLandListener implements A4jPublisher, Observer {
+public class A4jLandListener implements A4jPublisher, A4jSubscriber {
     private final static String TOP_LEVEL_TOPIC = "a4jlandline";
     private String serverURI;
     private String text;
@@ -106,8 +105,8 @@ public class A4jLandListener implements A4jPublisher, Observer {
     }
 
     @Override
-    public void update(Observable o, Object arg) {
-        this.text = (String) arg;
+    public void receive(String event) {
+        this.text = event;
         publish();
     }  
 }
@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Mark A. Heckler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.autonomous4j.physical;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import org.autonomous4j.interfaces.A4jSubscriber;
+
+/**
+ * A4jEventBus hands controller events to subscribers through a bounded ring 
+ * buffer. Publishing never waits on subscribers and never calls into 
+ * subscriber code: each subscriber has its own thread and read position. A 
+ * subscriber that falls more than a full ring behind skips ahead to the 
+ * oldest event still available, and the events it missed are counted as 
+ * dropped.
+ * 
+ * Any number of threads may publish (the serial threads, the scheduler and 
+ * callers all do). Each claims a sequence number, then the slot it maps to; 
+ * a producer only ever waits for another producer still writing that same 
+ * slot, i.e. one a full ring ahead of or behind it.
+ * 
+ * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
+ */
+public class A4jEventBus {
+    public static final int DEFAULT_CAPACITY = 256;
+    private static final int SPINS_BEFORE_PARK = 100;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<String> events;
+    // Per slot: (sequence + 1) of the event it holds, 0 if none yet, 
+    // BUSY while a producer writes it
+    private static final long BUSY = -1;
+    private final AtomicLongArray published;
+    private final AtomicLong cursor = new AtomicLong();
+    private final List<Consumer> consumers = new CopyOnWriteArrayList<>();
+
+    public A4jEventBus() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Ring size; rounded up to a power of two.
+     */
+    public A4jEventBus(int capacity) {
+        this.capacity = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.events = new AtomicReferenceArray<>(this.capacity);
+        this.published = new AtomicLongArray(this.capacity);
+    }
+
+    public void publish(String event) {
+        long seq = cursor.getAndIncrement();
+        int slot = (int) (seq & mask);
+        // Claim the slot so neither a reader nor a producer a lap away can 
+        // pair one event with another's sequence.
+        while (true) {
+            long stored = published.get(slot);
+            if (stored > seq + 1) {
+                return;     // Lapped before writing: a newer event owns the slot
+            }
+            if (stored != BUSY && published.compareAndSet(slot, stored, BUSY)) {
+                break;
+            }
+            Thread.yield();
+        }
+        events.set(slot, event);
+        // A full volatile write, not lazySet: it must not be reordered after 
+        // the read of 'parked' below, or a consumer that set 'parked' and 
+        // re-checked the slot in between would sleep through this event.
+        published.set(slot, seq + 1);
+
+        for (Consumer consumer : consumers) {
+            if (consumer.parked) {
+                LockSupport.unpark(consumer.thread);
+            }
+        }
+    }
+
+    public void subscribe(A4jSubscriber subscriber) {
+        Consumer consumer = new Consumer(subscriber, cursor.get());
+        consumers.add(consumer);
+        consumer.thread.start();
+    }
+
+    public int countSubscribers() {
+        return consumers.size();
+    }
+
+    public List<A4jSubscriber> getSubscribers() {
+        List<A4jSubscriber> subscribers = new ArrayList<>(consumers.size());
+        for (Consumer consumer : consumers) {
+            subscribers.add(consumer.subscriber);
+        }
+        return subscribers;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Stop all subscriber threads. Events not yet consumed are discarded.
+     */
+    public void unsubscribeAll() {
+        for (Consumer consumer : consumers) {
+            consumer.running = false;
+            LockSupport.unpark(consumer.thread);
+        }
+        consumers.clear();
+    }
+
+    public long getPublished() {
+        return cursor.get();
+    }
+
+    public long getDropped() {
+        long dropped = 0;
+        for (Consumer consumer : consumers) {
+            dropped += consumer.dropped;
+        }
+        return dropped;
+    }
+
+    private class Consumer implements Runnable {
+        private final A4jSubscriber subscriber;
+        private final Thread thread;
+        private volatile boolean running = true;
+        private volatile boolean parked = false;
+        private volatile long dropped = 0;
+        private long next;
+
+        Consumer(A4jSubscriber subscriber, long next) {
+            this.subscriber = subscriber;
+            this.next = next;
+            this.thread = new Thread(this, "A4jEventBus-" + subscriber.getClass().getSimpleName());
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+
+            while (running) {
+                int slot = (int) (next & mask);
+                long stored = published.get(slot);
+
+                if (stored == next + 1) {
+                    String event = events.get(slot);
+                    if (published.get(slot) == stored) {
+                        next++;
+                        idle = 0;
+                        deliver(event);
+                        continue;
+                    }
+                    // Overwritten while reading; fall through to skip ahead
+                    stored = published.get(slot);
+                }
+
+                if (stored > next + 1) {
+                    // Lapped by the producer: jump to the oldest event left
+                    long oldest = Math.max(next + 1, cursor.get() - capacity);
+                    dropped += oldest - next;
+                    next = oldest;
+                } else if (++idle > SPINS_BEFORE_PARK) {
+                    parked = true;
+                    if (published.get(slot) != next + 1) {
+                        LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                    }
+                    parked = false;
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+
+        private void deliver(String event) {
+            try {
+                subscriber.receive(event);
+            } catch (RuntimeException ex) {
+                // A misbehaving subscriber must not kill its delivery thread
+                A4jLandController.logIt("Subscriber " + subscriber + " failed: " + ex.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Mark A. Heckler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.autonomous4j.physical;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A4jFrameCodec encodes commands into, and decodes echoes from, the compact 
+ * binary frame format negotiated with the microcontroller at connect time.
+ * 
+ * Frame layout:
+ *   0xA5 | opcode | length | payload (length bytes) | checksum
+ * where opcode is the DroneCommand code byte, the payload is a varint 
+ * sequence id (0 = none) followed by zigzag varint arguments/values, and the 
+ * checksum is the XOR of opcode, length and payload bytes. A forward command 
+ * with sequence id costs 6 bytes instead of ~10 as text.
+ * 
+ * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
+ */
+final class A4jFrameCodec {
+    static final byte SYNC = (byte) 0xA5;
+    private static final int MAX_PAYLOAD = 64;
+    private static final int LINE_CAPACITY = 128;
+    
+    private enum State {SYNC, OPCODE, LENGTH, PAYLOAD, CHECKSUM};
+
+    private final A4jResponseParser.Handler handler;
+    private final byte[] payload = new byte[MAX_PAYLOAD];
+    private final long[] values = new long[A4jResponseParser.MAX_VALUES];
+    private final ByteBuffer text = ByteBuffer.allocate(LINE_CAPACITY);
+    private State state = State.SYNC;
+    private byte opcode;
+    private int length;
+    private int received;
+    private int checksum;
+
+    A4jFrameCodec(A4jResponseParser.Handler handler) {
+        this.handler = handler;
+    }
+
+    static byte[] encode(A4jSerialCommand cmd, boolean pipelined) {
+        // Two varints, at most 10 bytes each (plus 11 per script step)
+        A4jLandScript script = cmd.getScript();
+        byte[] body = new byte[20 + (script == null ? 0 : script.size() * 11)];
+        int len = putVarint(body, 0, pipelined ? cmd.getSequence() : 0);
+        if (cmd.hasArgument()) {
+            len = putVarint(body, len, zigzag(cmd.getArgument()));
+        }
+        if (script != null) {
+            len = script.toBinary(body, len);
+        }
+        if (len > 0xFF) {
+            throw new IllegalArgumentException("Command too long for one frame: " + cmd);
+        }
+
+        byte[] frame = new byte[len + 4];
+        frame[0] = SYNC;
+        frame[1] = cmd.getCommand().getOpcode();
+        frame[2] = (byte) len;
+        int sum = frame[1] ^ frame[2];
+        for (int i = 0; i < len; i++) {
+            frame[3 + i] = body[i];
+            sum ^= body[i];
+        }
+        frame[len + 3] = (byte) sum;
+        return frame;
+    }
+
+    static int putVarint(byte[] dest, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dest[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dest[pos++] = (byte) value;
+        return pos;
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    void feed(byte b) {
+        switch (state) {
+            case SYNC:
+                if (b == SYNC) {
+                    state = State.OPCODE;
+                } else {
+                    collectText(b);
+                }
+                break;
+            case OPCODE:
+                opcode = b;
+                checksum = b;
+                state = State.LENGTH;
+                break;
+            case LENGTH:
+                length = b & 0xFF;
+                checksum ^= b;
+                received = 0;
+                if (length > MAX_PAYLOAD) {
+                    // Not a frame we could have produced; resynchronize.
+                    state = State.SYNC;
+                } else {
+                    state = length == 0 ? State.CHECKSUM : State.PAYLOAD;
+                }
+                break;
+            case PAYLOAD:
+                payload[received++] = b;
+                checksum ^= b;
+                if (received == length) {
+                    state = State.CHECKSUM;
+                }
+                break;
+            case CHECKSUM:
+                state = State.SYNC;
+                if ((byte) checksum == b) {
+                    dispatch();
+                } else {
+                    A4jLandController.logIt("Binary frame checksum mismatch; frame dropped.");
+                }
+                break;
+        }
+    }
+
+    private void dispatch() {
+        int pos = 0;
+        int count = -1;     // First varint is the sequence id
+        int sequence = 0;
+
+        while (pos < length) {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = payload[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0 && pos < length);
+
+            if (count < 0) {
+                sequence = (int) v;
+                count = 0;
+            } else if (count < values.length) {
+                values[count++] = unzigzag(v);
+            }
+        }
+        handler.echoReceived(DroneCommand.fromCode(opcode), values, Math.max(count, 0), 
+                sequence == 0 ? -1 : sequence);
+    }
+
+    /*
+     Debug output printed by the firmware between frames is still surfaced 
+     line by line, as in text mode.
+     */
+    private void collectText(byte b) {
+        if (b == '\n') {
+            if (text.position() > 0) {
+                text.flip();
+                handler.passthroughReceived(text);
+            }
+            text.clear();
+        } else if (b != '\r' && text.hasRemaining()) {
+            text.put(b);
+        }
+    }
+}
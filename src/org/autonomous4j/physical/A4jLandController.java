@@ -23,71 +23,426 @@
  */
 package org.autonomous4j.physical;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Observable;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import jssc.SerialPortEvent;
 import jssc.SerialPortEventListener;
 import jssc.SerialPortException;
+import org.autonomous4j.interfaces.A4jSubscriber;
 
 /**
  * A4jLandController orchestrates communication between the A4jBrainL class, 
  * which operates ALVIN, and the underlying microcontroller.
  * 
+ * By default one command is outstanding at a time. With the property 
+ * 'pipelined' set to true, each command is tagged with a sequence id and up 
+ * to 'pipelineDepth' commands may be in flight; echoes are matched back to 
+ * their own command by that id.
+ * 
+ * With 'binaryFraming' set to true, the controller asks the firmware to 
+ * switch to the compact A4jFrameCodec format right after connecting and 
+ * falls back to text if the firmware does not acknowledge in time.
+ * 
+ * Every command has a deadline ('commandTimeout', ms). A move lasts as long 
+ * as it takes to drive, so it gets 'commandTimeout' plus its expected travel 
+ * time when the rover's pace is configured ('motionSpeed', cm/s, and 
+ * 'turnRate', degrees/s), and 'motionTimeout' (default 30 s; 0 to wait 
+ * forever) when it isn't. Timed out commands are re-sent up 
+ * to 'commandRetries' times with exponential backoff starting at 
+ * 'retryBackoff' ms (motion commands only if 'retryMotion' is true); after 
+ * that the command's future fails with a TimeoutException and the failure 
+ * handler, if any, is called. A timed out command keeps its pipeline slot 
+ * until it is re-sent or, once given up, until its late echo arrives (or one 
+ * more deadline passes), so a late echo never completes a different 
+ * command. See getStats() for the counters.
+ * 
+ * With 'sonarStream' set to an interval (ms), the firmware pushes distance 
+ * samples continuously. The latest sample per direction is cached, and the 
+ * ping methods answer from the cache while it is younger than 'sonarMaxAge' 
+ * ms instead of asking the microcontroller. Streaming also enables 
+ * moveUntil(), which drives continuously and stops as soon as the forward 
+ * distance reaches the requested stop distance.
+ * 
+ * With 'scripting' set to true, runScript() uploads a whole A4jLandScript in 
+ * one transfer and the firmware runs it, reporting progress per step; 
+ * otherwise scripts are played one command at a time.
+ * 
+ * With 'coalesce' set to true, compatible commands waiting in the queue are 
+ * merged (F:20 then F:20 becomes F:40; a stop directly followed by a move is 
+ * dropped) and everything that fits in the pipeline goes out in one write. 
+ * A4jLinkStats shows how many commands were merged and writes saved.
+ * 
+ * Observers (A4jSubscriber) receive a description of each command through 
+ * an A4jEventBus, on their own threads, so a slow subscriber never holds up 
+ * serial I/O.
+ * 
+ * A 'serialPort' of "sim" connects to an A4jSimulatedSerial instead of a 
+ * real port, configured by 'simRoom' (e.g. 500x400, cm), 'simObstacles' 
+ * (x,y,width,depth boxes separated by ';'), 'simStart' (x,y,heading), 
+ * 'simSpeed' (cm/s), 'simTurnRate' (degrees/s) and 'simLatency' (ms); 
+ * 'baudRate' applies as usual.
+ * 
+ * With 'sensorPort' set, the sonar commands (pings, sweeps and streaming) 
+ * go to a second microcontroller on that port and everything else to 
+ * 'serialPort'. Each port has its own writer thread, queue, pipeline and 
+ * A4jLinkStats, so sensing never waits behind a slow motion command.
+ * 
+ * Stops take a priority lane: stop() and stopAsync() write straight to the 
+ * port from the caller's thread, ahead of anything queued and without 
+ * waiting for a pipeline slot, and cancel motion commands still queued 
+ * (their futures fail with a CancellationException). emergencyStop() also 
+ * cancels everything else queued and abandons a running moveUntil. Commands 
+ * already on the wire can't be recalled; the firmware sees the stop next.
+ * 
  * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
  */
-public class A4jLandController extends Observable {
-    private boolean isConnected;
-    private String readBuffer = "";
-    private String curCmd = "";
-    private List<String> commands = new ArrayList<>();
-    private final A4jSerial serial = new A4jSerial();
-    private CompletableFuture<String> future;
-    private CompletableFuture<String> response;
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+public class A4jLandController {
+    private static final int DEFAULT_PIPELINE_DEPTH = 4;
+    private static final long DEFAULT_BINARY_HANDSHAKE_TIMEOUT = 1000;
+    private static final long DEFAULT_COMMAND_TIMEOUT = 5000;
+    private static final long DEFAULT_MOTION_TIMEOUT = 30000;
+    private static final int DEFAULT_COMMAND_RETRIES = 2;
+    private static final long DEFAULT_RETRY_BACKOFF = 100;
+    private static final long DEFAULT_SONAR_MAX_AGE = 200;
+    private static final long DEFAULT_MOVE_UNTIL_TIMEOUT = 30000;
+    private static final long DEFAULT_SCRIPT_TIMEOUT = 120000;
+    private static final long DEFAULT_STATS_INTERVAL = 10000;
+    private volatile boolean isConnected;
+    private boolean pipelined = false;
+    private boolean sonarSweep = false;
+    private volatile boolean sonarStreaming = false;
+    private volatile long sonarMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SONAR_MAX_AGE);
+    private final A4jSonarCache sonarCache = new A4jSonarCache();
+    private final AtomicReference<DistanceWatch> forwardWatch = new AtomicReference<>();
+    private long moveUntilTimeout = DEFAULT_MOVE_UNTIL_TIMEOUT;
+    private boolean scripting = false;
+    private long scriptTimeout = DEFAULT_SCRIPT_TIMEOUT;
+    private volatile A4jLandScript activeScript;
+    private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+    private long commandTimeout = DEFAULT_COMMAND_TIMEOUT;
+    private int commandRetries = DEFAULT_COMMAND_RETRIES;
+    private long retryBackoff = DEFAULT_RETRY_BACKOFF;
+    private boolean retryMotion = false;
+    private long motionTimeout = DEFAULT_MOTION_TIMEOUT;
+    private double motionSpeed = 0;
+    private double turnRate = 0;
+    private BiConsumer<DroneCommand, Throwable> failureHandler;
+    private volatile A4jEventBus eventBus = new A4jEventBus();
+    private boolean coalescing = false;
+    private final A4jSerial serial;
+    private final A4jSerial sensorSerial;
+    // Motor board; also carries anything not routed elsewhere
+    private SerialThread link;
+    private final Map<DroneCommand, SerialThread> routes = new EnumMap<>(DroneCommand.class);
+    private final List<SerialThread> links = new CopyOnWriteArrayList<>();
+    // Created by connect(), shut down by disconnect()
+    private ExecutorService executor;
+    private ScheduledExecutorService scheduler;
 
     Properties applicationProps = new Properties();
+
+    public A4jLandController() {
+        this(null, null);
+    }
+
+    /**
+     * @param serial Serial backend to use, e.g. a preconfigured 
+     * A4jSimulatedSerial.
+     */
+    public A4jLandController(A4jSerial serial) {
+        this(serial, null);
+    }
+
+    /**
+     * @param serial Serial backend for 'serialPort' (null for the default).
+     * @param sensorSerial Serial backend for 'sensorPort' (null for the 
+     * default).
+     */
+    public A4jLandController(A4jSerial serial, A4jSerial sensorSerial) {
+        this.serial = serial;
+        this.sensorSerial = sensorSerial;
+    }
     
     public boolean connect() throws Exception {
         // Initialize the log (PrintStream with autoflush)
         // ALWAYS start the logging FIRST!
-        // Load application properties
-        loadProperties();
-
-        // Log detected ports
-        A4jSerial.listPorts();
+        // Load application properties (once; reconnects reuse them)
+        if (applicationProps.isEmpty()) {
+            loadProperties();
+        }
+        // Threads, unlike properties, belong to one connection: disconnect() 
+        // shuts them down, so a reconnect needs new ones.
+        if (executor == null || executor.isShutdown()) {
+            executor = Executors.newCachedThreadPool();
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+        }
 
         String portName = getProperty("serialPort");
         if (portName.isEmpty()) {
+            // Log detected ports to help fix the configuration
+            A4jSerial.listPorts();
             // Get out of here!
             logIt("Exception: Property 'serialPort' missing from A4jBrain.properties file.");
             Exception e = new Exception("Exception: Property 'serialPort' missing from A4jBrain.properties file.");
             throw e;
         } else {
-            try {
-                logIt("Connecting to serial port " + portName);
-                executor.submit(new SerialThread(portName));
-                //isConnected = true; This is set in the serial.connect() method for realz...
-            } catch (Exception e) {
-                logIt("Exception: Connection to serial port " + portName + " failed: "
-                        + e.getMessage());
+            pipelined = Boolean.parseBoolean(applicationProps.getProperty("pipelined", "false"));
+            pipelineDepth = Integer.parseInt(applicationProps.getProperty("pipelineDepth", 
+                    String.valueOf(DEFAULT_PIPELINE_DEPTH)));
+            sonarSweep = Boolean.parseBoolean(applicationProps.getProperty("sonarSweep", "false"));
+            coalescing = Boolean.parseBoolean(applicationProps.getProperty("coalesce", "false"));
+            A4jEventBus configured = new A4jEventBus(Integer.parseInt(applicationProps.getProperty(
+                    "eventBusCapacity", String.valueOf(A4jEventBus.DEFAULT_CAPACITY))));
+            if (configured.getCapacity() != eventBus.getCapacity()) {
+                // Observers added before connect() move to the resized bus
+                A4jEventBus previous = eventBus;
+                List<A4jSubscriber> subscribers = previous.getSubscribers();
+                previous.unsubscribeAll();
+                for (A4jSubscriber subscriber : subscribers) {
+                    configured.subscribe(subscriber);
+                }
+                eventBus = configured;
+            }
+            commandTimeout = Long.parseLong(applicationProps.getProperty("commandTimeout", 
+                    String.valueOf(DEFAULT_COMMAND_TIMEOUT)));
+            commandRetries = Integer.parseInt(applicationProps.getProperty("commandRetries", 
+                    String.valueOf(DEFAULT_COMMAND_RETRIES)));
+            retryBackoff = Long.parseLong(applicationProps.getProperty("retryBackoff", 
+                    String.valueOf(DEFAULT_RETRY_BACKOFF)));
+            retryMotion = Boolean.parseBoolean(applicationProps.getProperty("retryMotion", "false"));
+            motionTimeout = Long.parseLong(applicationProps.getProperty("motionTimeout", 
+                    String.valueOf(DEFAULT_MOTION_TIMEOUT)));
+            motionSpeed = Double.parseDouble(applicationProps.getProperty("motionSpeed", "0"));
+            turnRate = Double.parseDouble(applicationProps.getProperty("turnRate", "0"));
+            moveUntilTimeout = Long.parseLong(applicationProps.getProperty("moveUntilTimeout", 
+                    String.valueOf(DEFAULT_MOVE_UNTIL_TIMEOUT)));
+            scripting = Boolean.parseBoolean(applicationProps.getProperty("scripting", "false"));
+            scriptTimeout = Long.parseLong(applicationProps.getProperty("scriptTimeout", 
+                    String.valueOf(DEFAULT_SCRIPT_TIMEOUT)));
+            setSonarMaxAge(Long.parseLong(applicationProps.getProperty("sonarMaxAge", 
+                    String.valueOf(DEFAULT_SONAR_MAX_AGE))));
+
+            if (isConnected) {
+                // Connecting again replaces the links: close the current ones 
+                // so their ports, writer threads and MBeans don't linger.
+                for (SerialThread open : links) {
+                    closeLink(open, new CancellationException("Reconnecting"));
+                }
                 isConnected = false;
             }
+            links.clear();
+            routes.clear();
+            link = openLink(portName, serial);
+            isConnected = link.connected;
+            String sensorPort = applicationProps.getProperty("sensorPort", "");
+            if (isConnected && !sensorPort.isEmpty()) {
+                SerialThread sensors = openLink(sensorPort, sensorSerial == null 
+                        && sensorPort.startsWith(A4jSimulatedSerial.PORT_PREFIX) 
+                        && link.serial instanceof A4jSimulatedSerial ? 
+                        new A4jSimulatedSerial((A4jSimulatedSerial) link.serial) : sensorSerial);
+                isConnected = sensors.connected;
+                for (DroneCommand command : new DroneCommand[] {DroneCommand.PINGF, 
+                        DroneCommand.PINGL, DroneCommand.PINGR, DroneCommand.PINGA, 
+                        DroneCommand.STREAM}) {
+                    routes.put(command, sensors);
+                }
+            }
+
+            if (!isConnected) {
+                // All or nothing: don't leave the motor link open (and its 
+                // writer running) when the sensor link failed.
+                for (SerialThread open : links) {
+                    closeLink(open, new CancellationException("Connection failed"));
+                }
+                links.clear();
+                routes.clear();
+                A4jSerial.listPorts();
+            }
+
+            for (SerialThread open : links) {
+                if (isConnected && Boolean.parseBoolean(applicationProps.getProperty("binaryFraming", "false"))) {
+                    open.negotiateBinaryFraming(Long.parseLong(applicationProps.getProperty(
+                            "binaryHandshakeTimeout", String.valueOf(DEFAULT_BINARY_HANDSHAKE_TIMEOUT))));
+                }
+                if (isConnected) {
+                    startLinkStats(open, Long.parseLong(applicationProps.getProperty(
+                            "statsInterval", String.valueOf(DEFAULT_STATS_INTERVAL))));
+                }
+            }
+
+            long streamInterval = Long.parseLong(applicationProps.getProperty("sonarStream", "0"));
+            if (isConnected && streamInterval > 0) {
+                startSonarStream(streamInterval);
+            }
         }
 
         return isConnected;
     }
 
+    /*
+     Connect one port and start its writer thread.
+     */
+    private SerialThread openLink(String portName, A4jSerial backend) {
+        if (portName.startsWith(A4jSimulatedSerial.PORT_PREFIX) 
+                && !(backend instanceof A4jSimulatedSerial)) {
+            backend = configureSimulator(new A4jSimulatedSerial());
+        } else if (backend == null) {
+            backend = new A4jSerial();
+        }
+        backend.setBaudRate(Integer.parseInt(applicationProps.getProperty("baudRate", 
+                String.valueOf(A4jSerial.DEFAULT_BAUD_RATE))))
+                .setReadyTimeout(Long.parseLong(applicationProps.getProperty("readyTimeout", 
+                        String.valueOf(A4jSerial.DEFAULT_READY_TIMEOUT))))
+                .setReadyBanner(applicationProps.getProperty("readyBanner", 
+                        A4jSerial.DEFAULT_READY_BANNER));
+
+        SerialThread thread = new SerialThread(portName, backend);
+        try {
+            logIt("Connecting to serial port " + portName 
+                    + (pipelined ? " (pipelined, depth " + pipelineDepth + ")" : ""));
+            thread.connect();
+            if (thread.connected) {
+                links.add(thread);
+                thread.writer = executor.submit(thread);
+            }
+        } catch (Exception e) {
+            logIt("Exception: Connection to serial port " + portName + " failed: "
+                    + e.getMessage());
+        }
+        
+        return thread;
+    }
+
+    private A4jSimulatedSerial configureSimulator(A4jSimulatedSerial sim) {
+        String[] room = applicationProps.getProperty("simRoom", 
+                A4jSimulatedSerial.DEFAULT_ROOM_WIDTH + "x" + A4jSimulatedSerial.DEFAULT_ROOM_DEPTH).split("x");
+        sim.setRoom(Double.parseDouble(room[0].trim()), Double.parseDouble(room[1].trim()));
+        for (String obstacle : applicationProps.getProperty("simObstacles", "").split(";")) {
+            double[] box = numbers(obstacle);
+            if (box.length == 4) {
+                sim.addObstacle(box[0], box[1], box[2], box[3]);
+            }
+        }
+        double[] start = numbers(applicationProps.getProperty("simStart", ""));
+        if (start.length == 3) {
+            sim.setStart(start[0], start[1], start[2]);
+        }
+        
+        return sim.setSpeed(Double.parseDouble(applicationProps.getProperty("simSpeed", 
+                        String.valueOf(A4jSimulatedSerial.DEFAULT_SPEED))))
+                .setTurnRate(Double.parseDouble(applicationProps.getProperty("simTurnRate", 
+                        String.valueOf(A4jSimulatedSerial.DEFAULT_TURN_RATE))))
+                .setLatency(Long.parseLong(applicationProps.getProperty("simLatency", 
+                        String.valueOf(A4jSimulatedSerial.DEFAULT_LATENCY))));
+    }
+
+    private static double[] numbers(String list) {
+        if (list.trim().isEmpty()) {
+            return new double[0];
+        }
+        String[] parts = list.split(",");
+        double[] numbers = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            numbers[i] = Double.parseDouble(parts[i].trim());
+        }
+        return numbers;
+    }
+
+    /*
+     Publish the link stats over JMX and refresh the throughput rates every 
+     interval ms, logging a snapshot each time if statsLog=true.
+     */
+    private void startLinkStats(SerialThread open, long interval) {
+        A4jLinkStats stats = open.stats;
+        stats.setDepthProbes(open.inFlight::size, () -> open.commandQueue.size() + open.pending.size());
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            open.statsName = new ObjectName("org.autonomous4j:type=SerialLink,name=" 
+                    + ObjectName.quote(open.portName));
+            if (!server.isRegistered(open.statsName)) {
+                server.registerMBean(stats, open.statsName);
+            }
+        } catch (JMException ex) {
+            logIt("Link stats not registered with JMX: " + ex.getMessage());
+            open.statsName = null;
+        }
+
+        if (interval > 0) {
+            boolean logStats = Boolean.parseBoolean(applicationProps.getProperty("statsLog", "false"));
+            scheduler.scheduleAtFixedRate(() -> {
+                stats.sample();
+                if (logStats) {
+                    logIt(open.portName + " " + stats);
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+     Close one port, stop its writer thread and release anyone waiting on it.
+     */
+    private void closeLink(SerialThread open, Throwable cause) {
+        open.connected = open.serial.disconnect();
+        if (open.writer != null) {
+            open.writer.cancel(true);
+        }
+        stopLinkStats(open);
+        open.failPending(cause);
+    }
+
+    private void stopLinkStats(SerialThread open) {
+        if (open.statsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(open.statsName);
+            } catch (JMException ex) {
+                Logger.getLogger(A4jLandController.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            open.statsName = null;
+        }
+    }
+
+    /**
+     * @return True if the motor link (serialPort) negotiated binary framing.
+     */
+    public boolean isBinaryFraming() {
+        return link != null && link.binaryFraming;
+    }
+
     public boolean disconnect() {
         if (this.countObservers() > 0) {
             logIt("Disconnecting observers");
@@ -96,13 +451,80 @@ public class A4jLandController extends Observable {
 
         if (isConnected) {
             logIt("Closing serial port");
-            isConnected = serial.disconnect();
+            for (SerialThread open : links) {
+                closeLink(open, new CancellationException("Disconnected"));
+            }
+            isConnected = false;
             executor.shutdownNow();
+            scheduler.shutdownNow();
         }
         
         return isConnected;
     }
 
+    /**
+     * Register a callback for commands that failed for good (all retries 
+     * timed out). Called on the controller's scheduler thread.
+     * @param failureHandler Receives the failed command and the cause.
+     */
+    public void setFailureHandler(BiConsumer<DroneCommand, Throwable> failureHandler) {
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * Ask the firmware to push distance samples every intervalMs.
+     * @param intervalMs Sample interval in milliseconds.
+     */
+    public void startSonarStream(long intervalMs) {
+        awaitEcho(writeToSerial(new A4jSerialCommand(DroneCommand.STREAM, intervalMs, 
+                DroneCommand.STREAM.getDescription() + " every " + intervalMs + " ms.")));
+        sonarStreaming = true;
+    }
+
+    public void stopSonarStream() {
+        sonarStreaming = false;
+        awaitEcho(writeToSerial(new A4jSerialCommand(DroneCommand.STREAM, 0, 
+                DroneCommand.STREAM.getDescription() + " off.")));
+    }
+
+    public boolean isSonarStreaming() {
+        return sonarStreaming;
+    }
+
+    /**
+     * Oldest cached sample the ping methods may return while streaming.
+     * @param maxAgeMs Maximum sample age in milliseconds.
+     */
+    public void setSonarMaxAge(long maxAgeMs) {
+        this.sonarMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+    }
+
+    /**
+     * @return Stats of the motor link (serialPort).
+     */
+    public A4jLinkStats getStats() {
+        return link.stats;
+    }
+
+    /**
+     * @param command Command type.
+     * @return Stats of the link that carries the given command.
+     */
+    public A4jLinkStats getStats(DroneCommand command) {
+        return linkFor(command).stats;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * @return True if scripts are uploaded and run by the firmware.
+     */
+    public boolean isScripting() {
+        return scripting;
+    }
+
     public static void logIt(String reading) {
         System.out.println(reading);
     }
@@ -141,153 +563,690 @@ public class A4jLandController extends Observable {
         return "";
     }
 
-    private CompletableFuture<String> writeToSerial(String command) {
-        future = new CompletableFuture<>();
-        // Place command into the queue so the Serial thread can pick it up
-        curCmd = command + "\r\n";
-        return future;
+    private CompletableFuture<Long> writeToSerial(A4jSerialCommand command) {
+        // Place command into its port's queue so that Serial thread can pick it up
+        return linkFor(command.getCommand()).submit(command);
     }
 
-    @Override
+    private SerialThread linkFor(DroneCommand command) {
+        return routes.getOrDefault(command, link);
+    }
+
+    /*
+     Deadline for a command in ms (0 for none): its own timeout if it has one, 
+     else commandTimeout plus, for a move, how long the move should take. 
+     Moves of unknown pace get motionTimeout, so a lost echo can't hold the 
+     pipeline forever.
+     */
+    private long deadlineFor(A4jSerialCommand cmd) {
+        return cmd.getTimeout(defaultTimeout(cmd));
+    }
+
+    private long defaultTimeout(A4jSerialCommand cmd) {
+        if (commandTimeout <= 0) {
+            return 0;
+        }
+        switch (cmd.getCommand()) {
+            case FORWARD:
+            case BACK:
+                return motionSpeed > 0 ? 
+                        commandTimeout + (long) (Math.abs(cmd.getArgument()) * 1000 / motionSpeed) : 
+                        motionTimeout;
+            case LEFT:
+            case RIGHT:
+                return turnRate > 0 ? 
+                        commandTimeout + (long) (Math.abs(cmd.getArgument()) * 1000 / turnRate) : 
+                        motionTimeout;
+            case PROGRAM:
+                return motionTimeout;   // runScriptAsync() normally sets scriptTimeout
+            default:
+                // Includes DRIVE, which is echoed as soon as the rover sets off
+                return commandTimeout;
+        }
+    }
+
+    public void addObserver(A4jSubscriber subscriber) {
+        eventBus.subscribe(subscriber);
+    }
+
+    public void deleteObservers() {
+        eventBus.unsubscribeAll();
+    }
+
+    public int countObservers() {
+        return eventBus.countSubscribers();
+    }
+
+    public A4jEventBus getEventBus() {
+        return eventBus;
+    }
+
+    /**
+     * Publish an event to all observers. Never blocks.
+     * @param arg Event; its String form is what observers receive.
+     */
     public void notifyObservers(Object arg) {
-        super.notifyObservers(arg);
+        eventBus.publish(String.valueOf(arg));
     }
 
     public void forward(long distance) {
-        commands.add(DroneCommand.FORWARD.getDescription() + " " + distance + " cm.");
-        response = writeToSerial(DroneCommand.FORWARD.getCommand() + distance);
-        try {
-            response.get();
-        } catch (InterruptedException | ExecutionException ex) {
-            Logger.getLogger(A4jLandController.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        awaitEcho(forwardAsync(distance));
     }
 
     public void back(long distance) {
-        commands.add(DroneCommand.BACK.getDescription() + " " + distance + " cm.");
-        response = writeToSerial(DroneCommand.BACK.getCommand() + distance);
-        try {
-            response.get();
-        } catch (InterruptedException | ExecutionException ex) {
-            Logger.getLogger(A4jLandController.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        awaitEcho(backAsync(distance));
     }
 
     public void left(long degrees) {
-        commands.add(DroneCommand.LEFT.getDescription() + " " + degrees + " degrees.");
-        response = writeToSerial(DroneCommand.LEFT.getCommand() + degrees);
-        try {
-            response.get();
-        } catch (InterruptedException | ExecutionException ex) {
-            Logger.getLogger(A4jLandController.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        awaitEcho(leftAsync(degrees));
     }
 
     public void right(long degrees) {
-        commands.add(DroneCommand.RIGHT.getDescription() + " " + degrees + " degrees.");
-        response = writeToSerial(DroneCommand.RIGHT.getCommand() + degrees);
+        awaitEcho(rightAsync(degrees));
+    }
+
+    public void stop() {
+        awaitEcho(stopAsync());
+    }
+
+    public long pingForward() {
+        return pingDistance(pingForwardAsync());
+    }
+    
+    public long pingLeft() {
+        return pingDistance(pingLeftAsync());
+    }
+    
+    public long pingRight() {
+        return pingDistance(pingRightAsync());
+    }
+
+    /**
+     * Drive forward until the wall ahead is stopDistance away.
+     * @param stopDistance Distance (in cm) from the wall at which to stop.
+     * @return Forward distance (in cm) measured before moving.
+     * @see #moveUntilAsync(long)
+     */
+    public long moveUntil(long stopDistance) {
+        long distance = 0;
         try {
-            response.get();
+            distance = moveUntilAsync(stopDistance).get();
         } catch (InterruptedException | ExecutionException ex) {
             Logger.getLogger(A4jLandController.class.getName()).log(Level.SEVERE, null, ex);
         }
+        return distance;
     }
 
-    public void stop() {
-        commands.add(DroneCommand.STOP.getDescription());
-        response = writeToSerial(DroneCommand.STOP.getCommand());
+    /**
+     * Run a script and wait for it to finish.
+     * @param script Moves to perform.
+     * @see #runScriptAsync(A4jLandScript)
+     */
+    public void runScript(A4jLandScript script) {
+        awaitEcho(runScriptAsync(script));
+    }
+
+    /**
+     * Read left, forward and right distances in one round trip. Falls back to 
+     * three separate pings unless 'sonarSweep' is enabled for the firmware.
+     * @return Distances (in cm) in all three directions.
+     */
+    public A4jSonarSweep pingAll() {
+        A4jSonarSweep sweep = new A4jSonarSweep(0, 0, 0);
         try {
-            response.get();
+            sweep = pingAllAsync().get();
         } catch (InterruptedException | ExecutionException ex) {
             Logger.getLogger(A4jLandController.class.getName()).log(Level.SEVERE, null, ex);
         }
+        return sweep;
     }
 
-    public long pingForward() {
-        commands.add(DroneCommand.PINGF.getDescription());
-        response = writeToSerial(DroneCommand.PINGF.getCommand());
-        return pingDistance();
+    /*
+     Non-blocking variants - begin. Each returns as soon as the command is 
+     queued; the future completes when the microcontroller echoes it.
+     */
+    public CompletableFuture<Void> forwardAsync(long distance) {
+        return motion(new A4jSerialCommand(DroneCommand.FORWARD, distance, 
+                DroneCommand.FORWARD.getDescription() + " " + distance + " cm."));
     }
-    
-    public long pingLeft() {
-        commands.add(DroneCommand.PINGL.getDescription());
-        response = writeToSerial(DroneCommand.PINGL.getCommand());
-        return pingDistance();
+
+    public CompletableFuture<Void> backAsync(long distance) {
+        return motion(new A4jSerialCommand(DroneCommand.BACK, distance, 
+                DroneCommand.BACK.getDescription() + " " + distance + " cm."));
     }
-    
-    public long pingRight() {
-        commands.add(DroneCommand.PINGR.getDescription());
-        response = writeToSerial(DroneCommand.PINGR.getCommand());
-        return pingDistance();
+
+    public CompletableFuture<Void> leftAsync(long degrees) {
+        return motion(new A4jSerialCommand(DroneCommand.LEFT, degrees, 
+                DroneCommand.LEFT.getDescription() + " " + degrees + " degrees."));
+    }
+
+    public CompletableFuture<Void> rightAsync(long degrees) {
+        return motion(new A4jSerialCommand(DroneCommand.RIGHT, degrees, 
+                DroneCommand.RIGHT.getDescription() + " " + degrees + " degrees."));
+    }
+
+    public CompletableFuture<Void> stopAsync() {
+        return linkFor(DroneCommand.STOP).submitUrgent(new A4jSerialCommand(DroneCommand.STOP, 
+                DroneCommand.STOP.getDescription()), false).thenAccept(v -> {});
+    }
+
+    /**
+     * Stop now: cancel every command still queued for the motor board, 
+     * abandon any moveUntil in progress and send a stop on the priority lane.
+     */
+    public void emergencyStop() {
+        DistanceWatch watch = forwardWatch.getAndSet(null);
+        if (watch != null) {
+            watch.reached.complete(A4jSonarCache.NONE);
+        }
+        awaitEcho(linkFor(DroneCommand.STOP).submitUrgent(new A4jSerialCommand(DroneCommand.STOP, 
+                "Emergency stop."), true));
     }
+
+    public CompletableFuture<Long> pingForwardAsync() {
+        return ping(DroneCommand.PINGF);
+    }
+
+    public CompletableFuture<Long> pingLeftAsync() {
+        return ping(DroneCommand.PINGL);
+    }
+
+    public CompletableFuture<Long> pingRightAsync() {
+        return ping(DroneCommand.PINGR);
+    }
+
+    public CompletableFuture<A4jSonarSweep> pingAllAsync() {
+        if (sonarStreaming) {
+            long left = cachedDistance(DroneCommand.PINGL);
+            long forward = cachedDistance(DroneCommand.PINGF);
+            long right = cachedDistance(DroneCommand.PINGR);
+            if (left != A4jSonarCache.NONE && forward != A4jSonarCache.NONE 
+                    && right != A4jSonarCache.NONE) {
+                return CompletableFuture.completedFuture(new A4jSonarSweep(left, forward, right));
+            }
+        }
+        if (!sonarSweep) {
+            CompletableFuture<Long> left = pingLeftAsync();
+            CompletableFuture<Long> forward = pingForwardAsync();
+            CompletableFuture<Long> right = pingRightAsync();
+            return CompletableFuture.allOf(left, forward, right)
+                    .thenApply(v -> new A4jSonarSweep(left.join(), forward.join(), right.join()));
+        }
+        
+        A4jSerialCommand cmd = new A4jSerialCommand(DroneCommand.PINGA, 
+                DroneCommand.PINGA.getDescription());
+        return writeToSerial(cmd).thenApply(v -> A4jSonarSweep.fromValues(cmd.getValues()));
+    }
+
+    /*
+     Answer from the streamed sample when fresh enough, else ask the firmware.
+     */
+    private CompletableFuture<Long> ping(DroneCommand command) {
+        long distance = cachedDistance(command);
+        if (distance != A4jSonarCache.NONE) {
+            return CompletableFuture.completedFuture(distance);
+        }
+        return writeToSerial(new A4jSerialCommand(command, command.getDescription()));
+    }
+
+    private long cachedDistance(DroneCommand command) {
+        return sonarStreaming ? 
+                sonarCache.getIfFresh(A4jSonarCache.directionOf(command), sonarMaxAgeNanos) : 
+                A4jSonarCache.NONE;
+    }
+
+    /**
+     * Drive forward until the wall ahead is stopDistance away. While sonar 
+     * streaming is on, the rover drives continuously and is stopped as soon 
+     * as a streamed sample crosses the threshold (or after 'moveUntilTimeout' 
+     * ms as a safety net); otherwise this pings once and moves the difference.
+     * @param stopDistance Distance (in cm) from the wall at which to stop.
+     * @return Future completing with the forward distance measured before 
+     * moving, once the rover has stopped.
+     */
+    public CompletableFuture<Long> moveUntilAsync(long stopDistance) {
+        return pingForwardAsync().thenCompose(distance -> {
+            if (distance <= stopDistance) {
+                return CompletableFuture.completedFuture(distance);
+            }
+            if (!sonarStreaming) {
+                // Dead reckoning: one blind move for the difference
+                return forwardAsync(distance - stopDistance).thenApply(v -> distance);
+            }
+
+            DistanceWatch watch = new DistanceWatch(stopDistance);
+            forwardWatch.set(watch);
+            Future<?> safety = scheduler.schedule(() -> watch.reached.complete(A4jSonarCache.NONE), 
+                    moveUntilTimeout, TimeUnit.MILLISECONDS);
+            
+            return motion(new A4jSerialCommand(DroneCommand.DRIVE, 
+                    DroneCommand.DRIVE.getDescription() + " until " + stopDistance + " cm from wall."))
+                    .thenCompose(v -> watch.reached)
+                    .thenCompose(reachedAt -> {
+                        if (reachedAt == A4jSonarCache.NONE) {
+                            logIt("moveUntil: no threshold crossing within " 
+                                    + moveUntilTimeout + " ms; stopping.");
+                        }
+                        return stopAsync();
+                    })
+                    .whenComplete((v, ex) -> {
+                        safety.cancel(false);
+                        forwardWatch.compareAndSet(watch, null);
+                        if (ex != null) {
+                            // Never leave the rover driving blind
+                            stopAsync();
+                        }
+                    })
+                    .thenApply(v -> distance);
+        });
+    }
+
+    /**
+     * Run a script. With 'scripting' enabled it is uploaded in a single 
+     * transfer (one script at a time) and executed by the firmware; 
+     * otherwise each step is sent as soon as the previous one is echoed.
+     * @param script Moves to perform.
+     * @return Future completing when the last step is done.
+     */
+    public CompletableFuture<Void> runScriptAsync(A4jLandScript script) {
+        if (!scripting) {
+            CompletableFuture<Void> steps = CompletableFuture.completedFuture(null);
+            for (int i = 0; i < script.size(); i++) {
+                final int step = i;
+                steps = steps.thenCompose(v -> motion(script.hasArgument(step) ? 
+                        new A4jSerialCommand(script.getCommand(step), script.getArgument(step), 
+                                script.getDescription(step)) : 
+                        new A4jSerialCommand(script.getCommand(step), script.getDescription(step))))
+                        .thenRun(() -> script.stepCompleted(step + 1));
+            }
+            return steps;
+        }
+
+        A4jSerialCommand cmd = new A4jSerialCommand(script, 
+                DroneCommand.PROGRAM.getDescription() + " (" + script.size() + " steps).");
+        cmd.setTimeout(scriptTimeout);
+        activeScript = script;
+        return motion(cmd).whenComplete((v, ex) -> activeScript = null);
+    }
+
+    private CompletableFuture<Void> motion(A4jSerialCommand command) {
+        return writeToSerial(command).thenAccept(v -> {});
+    }
+    /*
+     Non-blocking variants - end
+     */
     
-    private long pingDistance() {
-        int pos = 0;
+    private void awaitEcho(CompletableFuture<?> response) {
+        try {
+            response.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            Logger.getLogger(A4jLandController.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private long pingDistance(CompletableFuture<Long> response) {
         long distance = 0;
-        String distStr;
         try {
-            distStr = response.get();
-            if ((pos = distStr.indexOf(" ")) > -1) {
-                distStr = distStr.substring(0, pos);
-            }
-            
-            distance = Long.parseLong(distStr);
-        } catch (InterruptedException | ExecutionException | NumberFormatException ex) {
+            distance = response.get();
+        } catch (InterruptedException | ExecutionException ex) {
             Logger.getLogger(A4jLandController.class.getName()).log(Level.SEVERE, null, ex);
         }
         return distance;
     }
+
+    /*
+     A pending moveUntil: completed by the serial thread when a forward 
+     sample reaches the threshold.
+     */
+    private static class DistanceWatch {
+        private final long threshold;
+        private final CompletableFuture<Long> reached = new CompletableFuture<>();
+
+        DistanceWatch(long threshold) {
+            this.threshold = threshold;
+        }
+    }
     
-    private class SerialThread implements Runnable, SerialPortEventListener {
+    /*
+     One serial port: its own writer thread, queue, pipeline and stats.
+     */
+    private class SerialThread implements Runnable, SerialPortEventListener, 
+            A4jResponseParser.Handler {
+        private final String portName;
+        private final A4jSerial serial;
+        private final A4jResponseParser parser = new A4jResponseParser(this);
+        private final A4jFrameCodec frameDecoder = new A4jFrameCodec(this);
+        private final A4jLinkStats stats = new A4jLinkStats();
+        private ObjectName statsName;
+        private Future<?> writer;
+        private final BlockingQueue<A4jSerialCommand> commandQueue = new LinkedBlockingQueue<>();
+        // Taken from commandQueue by the writer but not yet sent (coalescing)
+        private final Deque<A4jSerialCommand> pending = new ConcurrentLinkedDeque<>();
+        private final Deque<A4jSerialCommand> inFlight = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger nextSequence = new AtomicInteger();
+        // Stop-and-wait unless the firmware understands sequence ids.
+        private final Semaphore inFlightPermits = new Semaphore(pipelined ? Math.max(1, pipelineDepth) : 1);
+        // Held for every write so a priority stop can't interleave with a batch
+        private final Object writeLock = new Object();
+        // Bumped by each priority stop; see A4jSerialCommand.getEpoch()
+        private volatile int preemptEpoch;
+        // preemptEpoch of the latest emergency stop, which drops everything
+        private volatile int clearEpoch;
+        private volatile boolean binaryFraming = false;
+        private volatile boolean connected;
 
-        public SerialThread(String portName) {
+        public SerialThread(String portName, A4jSerial serial) {
             System.out.println("Creating SerialThread...");
+            this.portName = portName;
+            this.serial = serial;
+        }
+
+        private void connect() {
             try {
-                isConnected = serial.connect(portName, this);
+                connected = serial.connect(portName, this);
             } catch (Exception ex) {
                 Logger.getLogger(A4jLandController.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
+
+        private CompletableFuture<Long> submit(A4jSerialCommand command) {
+            command.setEpoch(preemptEpoch);
+            commandQueue.offer(command);
+            return command.getResponse();
+        }
+
+        /*
+         Priority lane: written from the caller's thread as soon as any write 
+         in progress finishes. Queued motion (everything queued if all) is 
+         cancelled first so it can't undo the stop; a motion command the 
+         writer already holds is dropped when it gets to write() (epoch).
+         */
+        private CompletableFuture<Long> submitUrgent(A4jSerialCommand cmd, boolean all) {
+            long requested = System.nanoTime();
+            cmd.setUrgent();
+            synchronized (writeLock) {
+                preemptEpoch++;
+                if (all) {
+                    clearEpoch = preemptEpoch;
+                }
+                preempt(commandQueue, all);
+                preempt(pending, all);
+                
+                cmd.setSequence(nextSequence.incrementAndGet());
+                byte[] data = encode(cmd);
+                cmd.sent(requested);
+                inFlight.add(cmd);
+                armDeadline(cmd);
+                stats.commandSent();
+                try {
+                    serial.writeBytes(data);
+                    stats.sent(data.length);
+                    stats.written(1);
+                } catch (SerialPortException ex) {
+                    Logger.getLogger(A4jLandController.class.getName()).log(Level.SEVERE, null, ex);
+                    logIt("Exception writing to serial port: " + ex.getLocalizedMessage());
+                    if (inFlight.remove(cmd)) {
+                        cmd.cancelDeadline();
+                        cmd.getResponse().complete(0L);
+                    }
+                }
+            }
+            notifyObservers(cmd.getDescription());
+            return cmd.getResponse();
+        }
+
+        private void preempt(Queue<A4jSerialCommand> queue, boolean all) {
+            Iterator<A4jSerialCommand> it = queue.iterator();
+            while (it.hasNext()) {
+                A4jSerialCommand cmd = it.next();
+                if (all || cmd.getCommand().isMotion()) {
+                    it.remove();
+                    cancel(cmd);
+                }
+            }
+        }
+
+        private void cancel(A4jSerialCommand cmd) {
+            stats.preempted(cmd.getOriginals().size());
+            cmd.getResponse().completeExceptionally(
+                    new CancellationException("Preempted by stop: " + cmd));
+        }
+
+        /*
+         Ask the firmware for binary framing ("M:1"). Firmware that supports it 
+         echoes ">M:1" and switches; anything else leaves us in text mode. The 
+         receive side flips to binary as soon as the echo is parsed (see 
+         echoReceived), so every later command and echo is framed.
+         */
+        private void negotiateBinaryFraming(long timeoutMs) {
+            A4jSerialCommand request = new A4jSerialCommand(DroneCommand.BINARY, 1, 
+                    DroneCommand.BINARY.getDescription());
+            try {
+                submit(request).get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ExecutionException | TimeoutException ex) {
+                logIt("Binary framing not acknowledged; staying with text protocol.");
+                // Abandon the request so it doesn't hold the only in-flight slot.
+                if (inFlight.remove(request)) {
+                    inFlightPermits.release();
+                }
+            }
+            logIt(portName + " framing: " + (binaryFraming ? "binary" : "text"));
+        }
+
+        /*
+         Nothing will echo once the port is closed; release anyone still waiting.
+         */
+        private void failPending(Throwable cause) {
+            A4jSerialCommand cmd;
+            while ((cmd = inFlight.poll()) != null) {
+                cmd.cancelDeadline();
+                cmd.getResponse().completeExceptionally(cause);
+            }
+            while ((cmd = pending.poll()) != null) {
+                cmd.getResponse().completeExceptionally(cause);
+            }
+            while ((cmd = commandQueue.poll()) != null) {
+                cmd.getResponse().completeExceptionally(cause);
+            }
+        }
+
+        /*
+         Find the in-flight command an echo belongs to: by sequence id when 
+         pipelined, otherwise the oldest outstanding command with the same code. 
+         Echoes that match nothing are dropped; echoes caught by a tombstone 
+         are late ones, counted and dropped.
+         */
+        private A4jSerialCommand claimInFlight(DroneCommand command, int sequence) {
+            Iterator<A4jSerialCommand> it = inFlight.iterator();
+            while (it.hasNext()) {
+                A4jSerialCommand cmd = it.next();
+                if (pipelined ? cmd.getSequence() != sequence : cmd.getCommand() != command) {
+                    continue;
+                }
+                if (cmd.isTombstone()) {
+                    stats.lateEcho();
+                    logIt(cmd + " dropped.");
+                    if (cmd.echoCaught() && inFlight.remove(cmd)) {
+                        cmd.cancelDeadline();
+                        if (!cmd.isUrgent()) {
+                            inFlightPermits.release();
+                        }
+                    }
+                    return null;
+                }
+                if (inFlight.remove(cmd)) {
+                    long latency = System.nanoTime() - cmd.getSentNanos();
+                    cmd.cancelDeadline();
+                    stats.echoReceived(cmd.getCommand(), latency);
+                    if (cmd.isUrgent()) {
+                        stats.stopEchoed(latency);
+                    }
+                    if (!pipelined && cmd.getAttempts() > 1) {
+                        // Earlier attempts may still echo; the slot waits for them
+                        bury(cmd, cmd.getAttempts() - 1);
+                    } else if (!cmd.isUrgent()) {
+                        inFlightPermits.release();
+                    }
+                    return cmd;
+                }
+            }
+            return null;
+        }
+
+        /*
+         Deadline expired without an echo. The command keeps its slot while it 
+         waits to be re-sent; if it has failed for good, the slot goes back 
+         (or, without sequence ids, passes to a tombstone that catches the 
+         late echo).
+         */
+        private void timedOut(A4jSerialCommand cmd) {
+            if (!inFlight.contains(cmd)) {
+                return;     // Echo won the race
+            }
+            stats.timedOut();
+
+            boolean retryable = retryMotion || !cmd.getCommand().isMotion();
+            if (retryable && cmd.getAttempts() <= commandRetries && connected) {
+                stats.retried();
+                long backoff = retryBackoff << (cmd.getAttempts() - 1);
+                logIt("Timeout waiting for " + cmd + "; retrying in " + backoff + " ms.");
+                // Urgent ones too: the queue was already cleared when the 
+                // stop first went out, so a retry mustn't preempt again.
+                scheduler.schedule(() -> resend(cmd), backoff, TimeUnit.MILLISECONDS);
+            } else {
+                if (!giveUp(cmd)) {
+                    return;     // Echo won the race after all
+                }
+                stats.failed();
+                TimeoutException ex = new TimeoutException("No echo for " + cmd 
+                        + " after " + cmd.getAttempts() + " attempt(s)");
+                logIt(ex.getMessage());
+                cmd.getResponse().completeExceptionally(ex);
+                if (failureHandler != null) {
+                    failureHandler.accept(cmd.getCommand(), ex);
+                }
+            }
+        }
         
+        /*
+         Take a failed command out of flight. With sequence ids a late echo 
+         can't be mistaken for another command's, so the slot goes back now.
+         @return False if its echo claimed it first.
+         */
+        private boolean giveUp(A4jSerialCommand cmd) {
+            if (pipelined) {
+                if (!inFlight.remove(cmd)) {
+                    return false;
+                }
+                if (!cmd.isUrgent()) {
+                    inFlightPermits.release();
+                }
+                return true;
+            }
+            // The tombstone goes in first so no echo slips between the two
+            A4jSerialCommand tombstone = cmd.tombstone(cmd.getAttempts());
+            inFlight.addFirst(tombstone);
+            if (!inFlight.remove(cmd)) {
+                inFlight.remove(tombstone);
+                return false;
+            }
+            expireLater(tombstone);
+            return true;
+        }
+
+        /*
+         Hand an echoed command's slot to a tombstone for the echoes still 
+         owed by its earlier attempts.
+         */
+        private void bury(A4jSerialCommand cmd, int echoesOwed) {
+            A4jSerialCommand tombstone = cmd.tombstone(echoesOwed);
+            inFlight.addFirst(tombstone);
+            expireLater(tombstone);
+        }
+
+        /*
+         Echoes that haven't come within one more deadline aren't coming.
+         */
+        private void expireLater(A4jSerialCommand tombstone) {
+            tombstone.setDeadline(scheduler.schedule(() -> {
+                if (inFlight.remove(tombstone)) {
+                    logIt(tombstone + " never came; slot released.");
+                    if (!tombstone.isUrgent()) {
+                        inFlightPermits.release();
+                    }
+                }
+            }, Math.max(deadlineFor(tombstone), commandTimeout), TimeUnit.MILLISECONDS));
+        }
+
+        /*
+         Send a timed out command again, in its own slot and with its own 
+         sequence id, unless it was echoed during the backoff or a stop has 
+         overtaken it since.
+         */
+        private void resend(A4jSerialCommand cmd) {
+            synchronized (writeLock) {
+                // Count the attempt first: an echo claiming the command from 
+                // now on knows another echo may follow (see claimInFlight).
+                cmd.sent(System.nanoTime());
+                if (!inFlight.contains(cmd)) {
+                    return;
+                }
+                if (cmd.getCommand().isMotion() && cmd.getEpoch() < preemptEpoch) {
+                    if (inFlight.remove(cmd)) {
+                        inFlightPermits.release();
+                        cancel(cmd);
+                    }
+                    return;
+                }
+                
+                byte[] data = encode(cmd);
+                armDeadline(cmd);
+                stats.commandSent();
+                try {
+                    serial.writeBytes(data);
+                    stats.sent(data.length);
+                    stats.written(1);
+                } catch (SerialPortException ex) {
+                    Logger.getLogger(A4jLandController.class.getName()).log(Level.SEVERE, null, ex);
+                    logIt("Exception writing to serial port: " + ex.getLocalizedMessage());
+                    if (inFlight.remove(cmd)) {
+                        if (!cmd.isUrgent()) {
+                            inFlightPermits.release();
+                        }
+                        cmd.cancelDeadline();
+                        cmd.getResponse().complete(0L);
+                    }
+                }
+            }
+        }
+
+        private byte[] encode(A4jSerialCommand cmd) {
+            return binaryFraming ? 
+                    A4jFrameCodec.encode(cmd, pipelined) : 
+                    cmd.toWireString(pipelined).getBytes(StandardCharsets.US_ASCII);
+        }
+
+        private void armDeadline(A4jSerialCommand cmd) {
+            long timeout = deadlineFor(cmd);
+            if (timeout > 0) {
+                cmd.setDeadline(scheduler.schedule(() -> timedOut(cmd), 
+                        timeout, TimeUnit.MILLISECONDS));
+            }
+        }
+
         @Override
         public void serialEvent(SerialPortEvent event) {
-            int pos;
-            
             if (event.isRXCHAR() && event.getEventValue() > 0) { // Data is available
                 try {
-                    // Read all available data from serial port and add to buffer
-                    readBuffer += serial.getSerialPort().readString(event.getEventValue());
-                    if (readBuffer.contains("\n")) {
-                        String[] lines = readBuffer.split(">");
-                        for (String line: lines) {
-                            if ((pos = line.indexOf(":")) > -1) {
-                                System.out.println("COMMAND ECHO RECEIVED: " + line);
-
-                                // Provide the number value accompanying the command, 
-                                // removing the newline if present.
-                                if (line.length() > pos + 1) {
-                                    future.complete(line.substring(pos + 1, 
-                                            line.endsWith("\n") ? line.length() - 2 : line.length() - 1));                                    
-                                } else {    // Nothing after the : (most commands)
-                                    future.complete("");
-                                }
-//                                setChanged();
-//                                
-//                                // May need to match command & return, esp if 
-//                                // this changes to async treatment.
-//                                if (!commands.isEmpty()) {
-//                                    notifyObservers(commands.remove(0));
-//                                }
-                            } else {
-                                // Reading feedback from microcontroller
-                                System.out.println("Direct passthrough: " + line);
-                            }
-                        }
-                        if (lines[lines.length - 1].endsWith("\n")) {
-                            readBuffer = "";
+                    // Read all available data from serial port and parse it in place.
+                    // Framing is checked per byte as it may switch mid-burst.
+                    byte[] received = serial.readBytes(event.getEventValue());
+                    stats.received(received.length);
+                    for (byte b : received) {
+                        if (binaryFraming) {
+                            frameDecoder.feed(b);
                         } else {
-                            // Partial transmission in last parsed bucket; append to it.
-                            readBuffer = lines[lines.length - 1];
+                            parser.feed(b);
                         }
                     }
                 } catch (SerialPortException ex) {
@@ -308,24 +1267,193 @@ public class A4jLandController extends Observable {
             }
         }        
 
+        @Override
+        public void echoReceived(DroneCommand command, long[] values, int valueCount, int sequence) {
+            if (command == DroneCommand.BINARY) {
+                binaryFraming = valueCount > 0 && values[0] == 1;
+            }
+            if (command == DroneCommand.PROGRESS) {
+                scriptProgress(valueCount > 0 ? (int) values[0] : 0);
+                return;
+            }
+            boolean sample = cacheSonar(command, values, valueCount);
+
+            A4jSerialCommand cmd = claimInFlight(command, sequence);
+            if (cmd != null) {
+                // Value accompanying the command (distance for pings), 0 if none.
+                cmd.complete(values, valueCount);
+            } else if (!sample) {
+                // Streamed samples arrive unrequested; anything else is stale.
+                logIt("Unmatched echo dropped: " + command + " #" + sequence);
+            }
+        }
+
+        /*
+         Every distance seen, requested or streamed, refreshes the cache.
+         */
+        private boolean cacheSonar(DroneCommand command, long[] values, int valueCount) {
+            long now = System.nanoTime();
+            if (command == DroneCommand.PINGA && valueCount >= 3) {
+                sonarCache.update(A4jSonarCache.LEFT, values[0], now);
+                sonarCache.update(A4jSonarCache.FORWARD, values[1], now);
+                sonarCache.update(A4jSonarCache.RIGHT, values[2], now);
+                checkForwardWatch(values[1]);
+                return true;
+            }
+            int direction = command == null ? -1 : A4jSonarCache.directionOf(command);
+            if (direction >= 0 && valueCount > 0) {
+                sonarCache.update(direction, values[0], now);
+                if (direction == A4jSonarCache.FORWARD) {
+                    checkForwardWatch(values[0]);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private void scriptProgress(int step) {
+            A4jLandScript script = activeScript;
+            if (script != null && step > 0 && step <= script.size()) {
+                script.stepCompleted(step);
+                notifyObservers(script.getDescription(step - 1));
+            }
+        }
+
+        private void checkForwardWatch(long distance) {
+            DistanceWatch watch = forwardWatch.get();
+            if (watch != null && distance <= watch.threshold 
+                    && forwardWatch.compareAndSet(watch, null)) {
+                watch.reached.complete(distance);
+            }
+        }
+
+        @Override
+        public void passthroughReceived(ByteBuffer line) {
+            // Reading feedback from microcontroller
+            System.out.println("Direct passthrough: " + new String(line.array(), 
+                    line.arrayOffset() + line.position(), line.remaining(), StandardCharsets.US_ASCII));
+        }
+
         @Override
         public void run() {
-            while (isConnected) {
-                if (!curCmd.isEmpty()) {
+            A4jSerialCommand curCmd;
+            List<A4jSerialCommand> batch = new ArrayList<>();
+            
+            while (connected) {
+                try {
+                    // Park here until a command is submitted; no spinning. 
+                    // A stop may empty 'pending' at any moment, so poll it.
+                    curCmd = pending.poll();
+                    if (curCmd == null) {
+                        curCmd = commandQueue.take();
+                    }
+                    if (coalescing) {
+                        // Under writeLock so a stop can't preempt between 
+                        // coalesce()'s peek and poll.
+                        synchronized (writeLock) {
+                            commandQueue.drainTo(pending);
+                            curCmd = coalesce(curCmd);
+                        }
+                    }
+                    // Wait for room in the pipeline (a single slot when not 
+                    // pipelined, i.e. the previous echo must arrive first).
+                    inFlightPermits.acquire();
+                } catch (InterruptedException ex) {
+                    // Executor shutdown (disconnect) interrupts the wait.
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+
+                batch.clear();
+                batch.add(curCmd);
+                // Anything else already queued that fits in the pipeline 
+                // shares the same write.
+                if (coalescing) {
+                    synchronized (writeLock) {
+                        A4jSerialCommand next;
+                        while (inFlightPermits.tryAcquire()) {
+                            if ((next = pending.poll()) == null) {
+                                inFlightPermits.release();
+                                break;
+                            }
+                            batch.add(coalesce(next));
+                        }
+                    }
+                }
+                write(batch);
+            }
+        }
+
+        /*
+         Fold queued commands into cmd for as long as they are compatible. 
+         Call with writeLock held.
+         */
+        private A4jSerialCommand coalesce(A4jSerialCommand cmd) {
+            A4jSerialCommand next, merged;
+            while ((next = pending.peek()) != null 
+                    && (merged = A4jSerialCommand.coalesce(cmd, next)) != null) {
+                pending.poll();
+                stats.coalesced();
+                cmd = merged;
+            }
+            return cmd;
+        }
+
+        private void write(List<A4jSerialCommand> batch) {
+            synchronized (writeLock) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(batch.size() * 16);
+                int commands = 0;
+            
+                Iterator<A4jSerialCommand> it = batch.iterator();
+                while (it.hasNext()) {
+                    A4jSerialCommand cmd = it.next();
+                    if (cmd.getEpoch() < (cmd.getCommand().isMotion() ? preemptEpoch : clearEpoch)) {
+                        // A stop overtook it while the writer held it
+                        inFlightPermits.release();
+                        it.remove();
+                        cancel(cmd);
+                        continue;
+                    }
                     try {
-                        serial.getSerialPort().writeString(curCmd);
-                        curCmd = "";
-                    } catch (SerialPortException ex) {
-                        Logger.getLogger(A4jLandController.class.getName()).log(Level.SEVERE, null, ex);
-                        logIt("Exception writing to serial port: " + ex.getLocalizedMessage());
-                        future.complete(curCmd);
-                    } finally {
-                        setChanged();
-                                
-                        // May need to match command & return, esp if 
-                        // this changes to async treatment.
-                        if (!commands.isEmpty()) {
-                            notifyObservers(commands.remove(0));
+                        cmd.setSequence(nextSequence.incrementAndGet());
+                        out.write(encode(cmd));
+                    } catch (IllegalArgumentException | IOException ex) {
+                        // Command can't be encoded (e.g. script too long for a frame)
+                        logIt(ex.getMessage());
+                        inFlightPermits.release();
+                        it.remove();
+                        cmd.getResponse().completeExceptionally(ex);
+                        continue;
+                    }
+                    commands += cmd.getOriginals().size();
+                
+                    cmd.sent(System.nanoTime());
+                    inFlight.add(cmd);
+                    armDeadline(cmd);
+                    stats.commandSent();
+                }
+                if (out.size() == 0) {
+                    return;
+                }
+            
+                try {
+                    serial.writeBytes(out.toByteArray());
+                    stats.sent(out.size());
+                    stats.written(commands);
+                } catch (SerialPortException ex) {
+                    Logger.getLogger(A4jLandController.class.getName()).log(Level.SEVERE, null, ex);
+                    logIt("Exception writing to serial port: " + ex.getLocalizedMessage());
+                    for (A4jSerialCommand cmd : batch) {
+                        if (inFlight.remove(cmd)) {
+                            inFlightPermits.release();
+                            cmd.cancelDeadline();
+                            cmd.getResponse().complete(0L);
+                        }
+                    }
+                } finally {
+                    for (A4jSerialCommand cmd : batch) {
+                        for (A4jSerialCommand original : cmd.getOriginals()) {
+                            notifyObservers(original.getDescription());
                         }
                     }
                 }
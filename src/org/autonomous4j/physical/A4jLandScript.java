@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Mark A. Heckler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.autonomous4j.physical;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * A4jLandScript is a fixed sequence of moves (e.g. a box pattern) that can be 
+ * uploaded to the microcontroller in one transfer and run there, instead of 
+ * sending every step as its own command and waiting for its echo.
+ * 
+ * Compiled text form is the step codes and arguments run together, e.g. 
+ * "F50L90F100S"; the binary form is each step's opcode followed by a zigzag 
+ * varint argument. The firmware reports ">p:<step>" as each step (1-based) 
+ * finishes and echoes the upload when the whole script is done.
+ * 
+ * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
+ */
+public class A4jLandScript {
+    public static final int MAX_STEPS = 32;
+    private final List<DroneCommand> commands = new ArrayList<>();
+    private final List<Long> arguments = new ArrayList<>();
+    private final BitSet withArgument = new BitSet(MAX_STEPS);
+    private IntConsumer progressListener;
+
+    public A4jLandScript forward(long distance) {
+        return add(DroneCommand.FORWARD, distance);
+    }
+
+    public A4jLandScript back(long distance) {
+        return add(DroneCommand.BACK, distance);
+    }
+
+    public A4jLandScript left(long degrees) {
+        return add(DroneCommand.LEFT, degrees);
+    }
+
+    public A4jLandScript right(long degrees) {
+        return add(DroneCommand.RIGHT, degrees);
+    }
+
+    public A4jLandScript stop() {
+        return add(DroneCommand.STOP);
+    }
+
+    private A4jLandScript add(DroneCommand command, long argument) {
+        add(command);
+        withArgument.set(commands.size() - 1);
+        arguments.set(commands.size() - 1, argument);
+        return this;
+    }
+
+    private A4jLandScript add(DroneCommand command) {
+        if (commands.size() == MAX_STEPS) {
+            throw new IllegalStateException("Script exceeds " + MAX_STEPS + " steps.");
+        }
+        commands.add(command);
+        arguments.add(0L);
+        return this;
+    }
+
+    /**
+     * Receive the number (1-based) of each step as it completes.
+     * @param progressListener Called on the serial thread; keep it short.
+     * @return This script (allows chaining).
+     */
+    public A4jLandScript setProgressListener(IntConsumer progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    public int size() {
+        return commands.size();
+    }
+
+    DroneCommand getCommand(int step) {
+        return commands.get(step);
+    }
+
+    long getArgument(int step) {
+        return arguments.get(step);
+    }
+
+    boolean hasArgument(int step) {
+        return withArgument.get(step);
+    }
+
+    String getDescription(int step) {
+        DroneCommand cmd = commands.get(step);
+        return cmd.getDescription() + (hasArgument(step) ? " " + arguments.get(step) 
+                + (cmd == DroneCommand.LEFT || cmd == DroneCommand.RIGHT ? " degrees." : " cm.") 
+                : "");
+    }
+
+    void stepCompleted(int step) {
+        if (progressListener != null) {
+            progressListener.accept(step);
+        }
+    }
+
+    String toText() {
+        StringBuilder sb = new StringBuilder(commands.size() * 4);
+        for (int i = 0; i < commands.size(); i++) {
+            sb.append(commands.get(i).getCommand().charAt(0));
+            if (hasArgument(i)) {
+                sb.append(arguments.get(i));
+            }
+        }
+        return sb.toString();
+    }
+
+    int toBinary(byte[] dest, int pos) {
+        for (int i = 0; i < commands.size(); i++) {
+            dest[pos++] = commands.get(i).getOpcode();
+            pos = A4jFrameCodec.putVarint(dest, pos, 
+                    A4jFrameCodec.zigzag(arguments.get(i)));
+        }
+        return pos;
+    }
+
+    @Override
+    public String toString() {
+        return "Script\t" + toText();
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Mark A. Heckler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.autonomous4j.physical;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntSupplier;
+
+/**
+ * A4jLinkStats counts what happens to commands on the serial link: how many 
+ * were sent and echoed, how long the echoes took, and how many timed out, 
+ * were retried or ultimately failed, and how many echoes turned up after 
+ * their command had timed out.
+ * 
+ * Round-trip times are also kept per command type in power-of-two 
+ * microsecond buckets, along with bytes in/out and the number of commands 
+ * queued or waiting for an echo. sample() (called periodically by the 
+ * controller) turns the byte counters into per-second rates.
+ * 
+ * Stops sent on the priority lane are timed separately, from the moment 
+ * they were requested until their echo, along with the number of queued 
+ * commands they preempted.
+ * 
+ * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
+ */
+public class A4jLinkStats implements A4jLinkStatsMXBean {
+    private static final int BUCKETS = 32;
+
+    private final AtomicLong commandsSent = new AtomicLong();
+    private final AtomicLong echoesReceived = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong lateEchoes = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final AtomicLong commandsCoalesced = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong writesSaved = new AtomicLong();
+    private final AtomicLong commandsPreempted = new AtomicLong();
+    private final AtomicLong stopsEchoed = new AtomicLong();
+    private final AtomicLong totalStopLatencyNanos = new AtomicLong();
+    private final AtomicLong maxStopLatencyNanos = new AtomicLong();
+    private final AtomicLongArray[] histograms = new AtomicLongArray[DroneCommand.values().length];
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private volatile double bytesInPerSecond;
+    private volatile double bytesOutPerSecond;
+    private long lastSampleNanos = System.nanoTime();
+    private long lastBytesIn;
+    private long lastBytesOut;
+    private IntSupplier outstanding = () -> 0;
+    private IntSupplier queued = () -> 0;
+
+    public A4jLinkStats() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    void setDepthProbes(IntSupplier outstanding, IntSupplier queued) {
+        this.outstanding = outstanding;
+        this.queued = queued;
+    }
+
+    void commandSent() {
+        commandsSent.incrementAndGet();
+    }
+
+    void echoReceived(DroneCommand command, long latencyNanos) {
+        long micros = Math.max(1, latencyNanos / 1000);
+        histograms[command.ordinal()].incrementAndGet(
+                Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros)));
+        echoesReceived.incrementAndGet();
+        totalLatencyNanos.addAndGet(latencyNanos);
+        updateMax(maxLatencyNanos, latencyNanos);
+    }
+
+    void stopEchoed(long latencyNanos) {
+        stopsEchoed.incrementAndGet();
+        totalStopLatencyNanos.addAndGet(latencyNanos);
+        updateMax(maxStopLatencyNanos, latencyNanos);
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Lost the race to another update; re-check against the new max
+        }
+    }
+
+    void preempted(int commands) {
+        commandsPreempted.addAndGet(commands);
+    }
+
+    void coalesced() {
+        commandsCoalesced.incrementAndGet();
+    }
+
+    /*
+     One write call carrying 'commands' commands (coalesced ones included): 
+     every command beyond the first would have been a write of its own.
+     */
+    void written(int commands) {
+        writes.incrementAndGet();
+        writesSaved.addAndGet(commands - 1);
+    }
+
+    void received(int bytes) {
+        bytesIn.addAndGet(bytes);
+    }
+
+    void sent(int bytes) {
+        bytesOut.addAndGet(bytes);
+    }
+
+    /*
+     Rates are averaged over the time since the previous sample.
+     */
+    synchronized void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSampleNanos) / 1e9;
+        long in = bytesIn.get();
+        long out = bytesOut.get();
+        if (seconds > 0) {
+            bytesInPerSecond = (in - lastBytesIn) / seconds;
+            bytesOutPerSecond = (out - lastBytesOut) / seconds;
+        }
+        lastSampleNanos = now;
+        lastBytesIn = in;
+        lastBytesOut = out;
+    }
+
+    void timedOut() {
+        timeouts.incrementAndGet();
+    }
+
+    void retried() {
+        retries.incrementAndGet();
+    }
+
+    void failed() {
+        failures.incrementAndGet();
+    }
+
+    void lateEcho() {
+        lateEchoes.incrementAndGet();
+    }
+
+    @Override
+    public long getCommandsSent() {
+        return commandsSent.get();
+    }
+
+    @Override
+    public long getEchoesReceived() {
+        return echoesReceived.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public long getLateEchoes() {
+        return lateEchoes.get();
+    }
+
+    @Override
+    public long getCommandsCoalesced() {
+        return commandsCoalesced.get();
+    }
+
+    @Override
+    public long getWrites() {
+        return writes.get();
+    }
+
+    @Override
+    public long getWritesSaved() {
+        return writesSaved.get();
+    }
+
+    @Override
+    public long getCommandsPreempted() {
+        return commandsPreempted.get();
+    }
+
+    @Override
+    public long getStopsEchoed() {
+        return stopsEchoed.get();
+    }
+
+    @Override
+    public double getMeanStopLatencyMillis() {
+        long stops = stopsEchoed.get();
+        return stops == 0 ? 0 : totalStopLatencyNanos.get() / (stops * 1e6);
+    }
+
+    @Override
+    public double getMaxStopLatencyMillis() {
+        return maxStopLatencyNanos.get() / 1e6;
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        long echoes = echoesReceived.get();
+        return echoes == 0 ? 0 : totalLatencyNanos.get() / (echoes * 1e6);
+    }
+
+    @Override
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos.get() / 1e6;
+    }
+
+    @Override
+    public String[] getLatencySummary() {
+        List<String> summary = new ArrayList<>();
+        for (DroneCommand command : DroneCommand.values()) {
+            long count = count(histograms[command.ordinal()]);
+            if (count > 0) {
+                summary.add(command + ": n=" + count 
+                        + String.format(" p50<=%.2fms p90<=%.2fms p99<=%.2fms", 
+                                percentile(command, 50), percentile(command, 90), 
+                                percentile(command, 99)));
+            }
+        }
+        return summary.toArray(new String[summary.size()]);
+    }
+
+    @Override
+    public double getLatencyPercentileMillis(String command, double percentile) {
+        return percentile(DroneCommand.valueOf(command), percentile);
+    }
+
+    /*
+     Upper bound (ms) of the bucket holding the given percentile.
+     */
+    private double percentile(DroneCommand command, double percentile) {
+        AtomicLongArray histogram = histograms[command.ordinal()];
+        long target = (long) Math.ceil(count(histogram) * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += histogram.get(bucket);
+            if (seen >= target && seen > 0) {
+                return (1L << (bucket + 1)) / 1000.0;
+            }
+        }
+        return 0;
+    }
+
+    private static long count(AtomicLongArray histogram) {
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            count += histogram.get(bucket);
+        }
+        return count;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    @Override
+    public double getBytesInPerSecond() {
+        return bytesInPerSecond;
+    }
+
+    @Override
+    public double getBytesOutPerSecond() {
+        return bytesOutPerSecond;
+    }
+
+    @Override
+    public int getOutstandingCommands() {
+        return outstanding.getAsInt();
+    }
+
+    @Override
+    public int getQueuedCommands() {
+        return queued.getAsInt();
+    }
+
+    @Override
+    public String toString() {
+        return "Link\tSent(" + getCommandsSent() + ")\tEchoed(" + getEchoesReceived() 
+                + ")\tTimeouts(" + getTimeouts() + ")\tRetries(" + getRetries() 
+                + ")\tFailures(" + getFailures() + ")\tLateEchoes(" + getLateEchoes() 
+                + ")\tCoalesced(" + getCommandsCoalesced() 
+                + ")\tWritesSaved(" + getWritesSaved() + ")\tMeanRTT(" 
+                + String.format("%.1f", getMeanLatencyMillis()) + "ms)\tMaxRTT(" 
+                + String.format("%.1f", getMaxLatencyMillis()) + "ms)\tPreempted(" 
+                + getCommandsPreempted() + ")\tMaxStop(" 
+                + String.format("%.1f", getMaxStopLatencyMillis()) + "ms)\tIn(" 
+                + String.format("%.0f", getBytesInPerSecond()) + "B/s)\tOut(" 
+                + String.format("%.0f", getBytesOutPerSecond()) + "B/s)\tOutstanding(" 
+                + getOutstandingCommands() + ")\tQueued(" + getQueuedCommands() + ")";
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Mark A. Heckler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.autonomous4j.physical;
+
+/**
+ * Management view of an A4jLinkStats, registered with the platform MBean 
+ * server as org.autonomous4j:type=SerialLink,name=&lt;port&gt; while the 
+ * link is connected.
+ * 
+ * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
+ */
+public interface A4jLinkStatsMXBean {
+    long getCommandsSent();
+    long getEchoesReceived();
+    long getTimeouts();
+    long getRetries();
+    long getFailures();
+    long getLateEchoes();
+    long getCommandsCoalesced();
+    long getWrites();
+    long getWritesSaved();
+    long getCommandsPreempted();
+
+    double getMeanLatencyMillis();
+    double getMaxLatencyMillis();
+    String[] getLatencySummary();
+    double getLatencyPercentileMillis(String command, double percentile);
+    long getStopsEchoed();
+    double getMeanStopLatencyMillis();
+    double getMaxStopLatencyMillis();
+
+    long getBytesIn();
+    long getBytesOut();
+    double getBytesInPerSecond();
+    double getBytesOutPerSecond();
+
+    int getOutstandingCommands();
+    int getQueuedCommands();
+}
@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Mark A. Heckler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.autonomous4j.physical;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A4jResponseParser is a byte-level state machine for the text responses 
+ * coming back from the microcontroller, e.g. ">F:\r\n" or ">f:123 cm#7\r\n".
+ * 
+ * Numeric payloads and sequence ids are accumulated directly into primitives 
+ * and the current line is kept in a single reusable buffer, so parsing an 
+ * echo creates no intermediate Strings.
+ * 
+ * That buffer is linear rather than a ring: every byte is consumed as it 
+ * arrives and the buffer is cleared at the end of each line, so there is 
+ * never unread data left to wrap around. Passthrough lines longer than 
+ * LINE_CAPACITY are cut short; echoes are parsed in full regardless.
+ * 
+ * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
+ */
+final class A4jResponseParser {
+    static final int MAX_VALUES = 4;
+    private static final int LINE_CAPACITY = 128;
+    
+    private enum State {TEXT, CODE, VALUE, SEQUENCE};
+
+    interface Handler {
+        /**
+         * Called for every complete command echo.
+         * @param command Command echoed, null if the code is unknown.
+         * @param values Numeric payload (reused; copy what you need).
+         * @param valueCount Number of valid entries in values.
+         * @param sequence Sequence id, or -1 if none was sent.
+         */
+        void echoReceived(DroneCommand command, long[] values, int valueCount, int sequence);
+
+        /**
+         * Called for anything else the microcontroller prints.
+         * @param line Raw bytes of the line, positioned for reading (reused).
+         */
+        void passthroughReceived(ByteBuffer line);
+    }
+
+    private final Handler handler;
+    private final ByteBuffer line = ByteBuffer.allocate(LINE_CAPACITY);
+    private final long[] values = new long[MAX_VALUES];
+    private State state = State.TEXT;
+    private DroneCommand command;
+    private int valueCount;
+    private long value;
+    private boolean inNumber;
+    private boolean negative;
+    private int sequence;
+
+    A4jResponseParser(Handler handler) {
+        this.handler = handler;
+    }
+
+    void feed(byte[] data) {
+        feed(data, 0, data.length);
+    }
+
+    void feed(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            feed(data[i]);
+        }
+    }
+
+    void feed(byte b) {
+        if (b == '\r') {
+            return;
+        }
+        if (b == '>') {
+            // Start of an echo; anything pending is finished first.
+            finishRecord();
+            state = State.CODE;
+            command = null;
+            return;
+        }
+        if (b == '\n') {
+            finishRecord();
+            return;
+        }
+        if (line.hasRemaining()) {
+            line.put(b);
+        }
+
+        switch (state) {
+            case CODE:
+                if (b == ':') {
+                    state = State.VALUE;
+                    valueCount = 0;
+                    sequence = -1;
+                    resetNumber();
+                } else if (command == null && line.position() == 1) {
+                    command = DroneCommand.fromCode(b);
+                }
+                break;
+            case VALUE:
+                if (b >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                    inNumber = true;
+                } else if (b == '-' && !inNumber) {
+                    negative = true;
+                } else {
+                    endNumber();
+                    if (b == '#') {
+                        state = State.SEQUENCE;
+                        sequence = 0;
+                    }
+                }
+                break;
+            case SEQUENCE:
+                if (b >= '0' && b <= '9') {
+                    sequence = sequence * 10 + (b - '0');
+                }
+                break;
+            default:
+                // TEXT: just collected above
+                break;
+        }
+    }
+
+    private void resetNumber() {
+        value = 0;
+        inNumber = false;
+        negative = false;
+    }
+
+    private void endNumber() {
+        if (inNumber && valueCount < MAX_VALUES) {
+            values[valueCount++] = negative ? -value : value;
+        }
+        resetNumber();
+    }
+
+    private void finishRecord() {
+        if (state == State.VALUE || state == State.SEQUENCE) {
+            endNumber();
+            handler.echoReceived(command, values, valueCount, sequence);
+        } else if (line.position() > 0) {
+            line.flip();
+            handler.passthroughReceived(line);
+        }
+        line.clear();
+        state = State.TEXT;
+        command = null;
+    }
+}
@@ -24,6 +24,7 @@
 package org.autonomous4j.physical;
 
 import static java.lang.Thread.sleep;
+import java.nio.charset.StandardCharsets;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jssc.SerialPort;
@@ -35,14 +36,53 @@ import static org.autonomous4j.physical.A4jLandController.logIt;
 /**
  * A4jSerial connects with JSSC library to specified serial port.
  * 
+ * Rather than sleeping a fixed time while the microcontroller resets, 
+ * connect() waits for it to prove it is alive: either by printing the ready 
+ * banner or by echoing a (harmless) stop probe. It returns as soon as that 
+ * happens and the line has then been quiet for a probe interval (so no 
+ * late probe echo reaches the controller), or after the ready timeout.
+ * 
+ * The controller only talks to the port through connect(), writeBytes(), 
+ * readBytes() and disconnect(), so a subclass (see A4jSimulatedSerial) can 
+ * stand in for real hardware.
+ * 
  * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
  */
 public class A4jSerial {    
 
+    public static final int DEFAULT_BAUD_RATE = SerialPort.BAUDRATE_9600;
+    public static final long DEFAULT_READY_TIMEOUT = 5000;
+    public static final String DEFAULT_READY_BANNER = "READY";
+    private static final long PROBE_INTERVAL = 250;
+    private static final String PROBE = DroneCommand.STOP.getCommand() + "\r\n";
+    private static final String PROBE_ECHO = ">" + DroneCommand.STOP.getCommand();
+
     private SerialPort serialPort;
 
     private boolean isConnected = false;
+    private int baudRate = DEFAULT_BAUD_RATE;
+    private long readyTimeout = DEFAULT_READY_TIMEOUT;
+    private String readyBanner = DEFAULT_READY_BANNER;
     
+    public A4jSerial setBaudRate(int baudRate) {
+        this.baudRate = baudRate;
+        return this;
+    }
+
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    public A4jSerial setReadyTimeout(long readyTimeout) {
+        this.readyTimeout = readyTimeout;
+        return this;
+    }
+
+    public A4jSerial setReadyBanner(String readyBanner) {
+        this.readyBanner = readyBanner;
+        return this;
+    }
+
     public boolean connect(String portName, SerialPortEventListener listener) throws Exception {
         isConnected = connect(portName);
         serialPort.addEventListener(listener);
@@ -54,17 +94,14 @@ public class A4jSerial {
         serialPort = new SerialPort(portName);
         try{
             if (serialPort.openPort()) {
-                logIt("Port '" + portName + "' open.");
-                serialPort.setParams(SerialPort.BAUDRATE_9600, 
+                logIt("Port '" + portName + "' open at " + baudRate + " baud.");
+                serialPort.setParams(baudRate, 
                         SerialPort.DATABITS_8, 
                         SerialPort.STOPBITS_1, 
                         SerialPort.PARITY_NONE);
 
-                /*
-                A sleep(2000) call is the minimum required to allow for Arduino 
-                to retrieve values from the serial port. No touchy!  ;)
-                */
-                sleep(2500);
+                // Opening the port resets the Arduino; wait until it's listening.
+                awaitReady();
                 isConnected = true;
             }            
         } catch (SerialPortException | InterruptedException e) {
@@ -74,6 +111,68 @@ public class A4jSerial {
         return isConnected;
     }
 
+    /*
+     Poll for the firmware banner or an echo of the stop probe, re-sending the 
+     probe periodically since bytes sent while the bootloader runs are lost.
+     */
+    private boolean awaitReady() throws SerialPortException, InterruptedException {
+        long start = System.currentTimeMillis();
+        long nextProbe = start;
+        StringBuilder received = new StringBuilder();
+
+        while (System.currentTimeMillis() - start < readyTimeout) {
+            if (System.currentTimeMillis() >= nextProbe) {
+                serialPort.writeString(PROBE);
+                nextProbe += PROBE_INTERVAL;
+            }
+            if (serialPort.getInputBufferBytesCount() > 0) {
+                received.append(new String(serialPort.readBytes(), StandardCharsets.US_ASCII));
+                if (received.indexOf(PROBE_ECHO) > -1 
+                        || (!readyBanner.isEmpty() && received.indexOf(readyBanner) > -1)) {
+                    logIt("Microcontroller ready after " 
+                            + (System.currentTimeMillis() - start) + " ms.");
+                    drainUntilQuiet();
+                    return true;
+                }
+            } else {
+                sleep(10);
+            }
+        }
+        
+        logIt("No ready signal from microcontroller within " + readyTimeout 
+                + " ms; continuing anyway.");
+        return false;
+    }
+
+    /*
+     Echoes of earlier probes may still be on their way, and in stop-and-wait 
+     mode a stray ">S:" would complete the controller's next stop. Discard 
+     input until nothing has arrived for a whole probe interval (bounded by 
+     the ready timeout, in case the firmware never goes quiet).
+     */
+    private void drainUntilQuiet() throws SerialPortException, InterruptedException {
+        long now = System.currentTimeMillis();
+        long giveUp = now + readyTimeout;
+        long quietSince = now;
+        
+        while ((now = System.currentTimeMillis()) - quietSince < PROBE_INTERVAL && now < giveUp) {
+            if (serialPort.getInputBufferBytesCount() > 0) {
+                serialPort.readBytes();
+                quietSince = System.currentTimeMillis();
+            } else {
+                sleep(10);
+            }
+        }
+    }
+
+    public void writeBytes(byte[] data) throws SerialPortException {
+        serialPort.writeBytes(data);
+    }
+
+    public byte[] readBytes(int byteCount) throws SerialPortException {
+        return serialPort.readBytes(byteCount);
+    }
+
     public void addEventListener(SerialPortEventListener listener) throws Exception {
         serialPort.addEventListener(listener);
     }
@@ -0,0 +1,323 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Mark A. Heckler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.autonomous4j.physical;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * A4jSerialCommand is a single DroneCommand instance on its way to (or back 
+ * from) the microcontroller. It carries the command argument, the sequence id 
+ * used to correlate the echo in pipelined mode, and the future completed by 
+ * that echo.
+ * 
+ * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
+ */
+final class A4jSerialCommand {
+    static final String SEQUENCE_SEPARATOR = "#";
+
+    private final DroneCommand command;
+    private final long argument;
+    private final boolean hasArgument;
+    private final String description;
+    private final A4jLandScript script;
+    private final CompletableFuture<Long> response = new CompletableFuture<>();
+    private volatile int sequence;
+    private long[] values;
+    private volatile int attempts;
+    private volatile long sentNanos;
+    private volatile Future<?> deadline;
+    private long timeout = -1;
+    private List<A4jSerialCommand> originals;
+    private volatile boolean urgent;
+    private volatile int epoch;
+    private boolean tombstone;
+    private int echoesOwed;
+
+    A4jSerialCommand(DroneCommand command, String description) {
+        this.command = command;
+        this.argument = 0;
+        this.hasArgument = false;
+        this.description = description;
+        this.script = null;
+    }
+
+    A4jSerialCommand(DroneCommand command, long argument, String description) {
+        this.command = command;
+        this.argument = argument;
+        this.hasArgument = true;
+        this.description = description;
+        this.script = null;
+    }
+
+    A4jSerialCommand(A4jLandScript script, String description) {
+        this.command = DroneCommand.PROGRAM;
+        this.argument = 0;
+        this.hasArgument = false;
+        this.description = description;
+        this.script = script;
+    }
+
+    DroneCommand getCommand() {
+        return command;
+    }
+
+    long getArgument() {
+        return argument;
+    }
+
+    boolean hasArgument() {
+        return hasArgument;
+    }
+
+    String getDescription() {
+        return description;
+    }
+
+    A4jLandScript getScript() {
+        return script;
+    }
+
+    /*
+     Deadline for this command in ms; negative means the controller default.
+     */
+    long getTimeout(long defaultTimeout) {
+        return timeout < 0 ? defaultTimeout : timeout;
+    }
+
+    void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /*
+     Urgent commands take the priority lane: written directly, without a 
+     pipeline slot.
+     */
+    boolean isUrgent() {
+        return urgent;
+    }
+
+    void setUrgent() {
+        this.urgent = true;
+    }
+
+    /*
+     Number of priority-lane stops on the link before this was queued; a 
+     motion command from an older epoch has been preempted.
+     */
+    int getEpoch() {
+        return epoch;
+    }
+
+    void setEpoch(int epoch) {
+        this.epoch = epoch;
+    }
+
+    /*
+     A stand-in for a command that timed out or was sent more than once: it 
+     keeps the command's pipeline slot and its claim on echoes with the same 
+     code (or sequence id), so echoes still owed for earlier attempts are 
+     caught here instead of completing somebody else's command.
+     */
+    A4jSerialCommand tombstone(int echoes) {
+        A4jSerialCommand stand = hasArgument ? 
+                new A4jSerialCommand(command, argument, "Late echo of " + description) : 
+                new A4jSerialCommand(command, "Late echo of " + description);
+        stand.sequence = sequence;
+        stand.sentNanos = sentNanos;
+        stand.urgent = urgent;
+        stand.timeout = timeout;
+        stand.tombstone = true;
+        stand.echoesOwed = echoes;
+        return stand;
+    }
+
+    boolean isTombstone() {
+        return tombstone;
+    }
+
+    /*
+     Tombstones only: count an echo caught.
+     @return True once every echo owed has arrived.
+     */
+    boolean echoCaught() {
+        return --echoesOwed <= 0;
+    }
+
+    CompletableFuture<Long> getResponse() {
+        return response;
+    }
+
+    /*
+     Complete with the echoed value. Multi-value echoes (e.g. a sonar sweep) 
+     keep a copy of every value, since the parser reuses its array.
+     */
+    void complete(long[] echoed, int valueCount) {
+        if (valueCount > 1) {
+            values = Arrays.copyOf(echoed, valueCount);
+        }
+        response.complete(valueCount > 0 ? echoed[0] : 0L);
+    }
+
+    long[] getValues() {
+        return values;
+    }
+
+    /*
+     Called by the writer each time the command goes out on the wire.
+     */
+    void sent(long nanos) {
+        attempts++;
+        sentNanos = nanos;
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    long getSentNanos() {
+        return sentNanos;
+    }
+
+    void setDeadline(Future<?> deadline) {
+        this.deadline = deadline;
+    }
+
+    void cancelDeadline() {
+        Future<?> pending = deadline;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+    }
+
+    /*
+     Coalescing - begin. A command may stand in for several queued ones; 
+     those originals complete (or fail) with it.
+     */
+    private static boolean isAdditive(DroneCommand command) {
+        return command == DroneCommand.FORWARD || command == DroneCommand.BACK 
+                || command == DroneCommand.LEFT || command == DroneCommand.RIGHT;
+    }
+
+    /**
+     * Merge two consecutive queued commands into one if that's safe: equal 
+     * moves add up (F:20 + F:20 = F:40), and a stop right before a move is 
+     * redundant. Commands already sent once (retries) are never merged.
+     * 
+     * The merged command has no timeout of its own, so its deadline is 
+     * worked out from the merged distance when it is written. Commands with 
+     * an explicit timeout aren't merged: it was chosen for their own move.
+     * 
+     * The stop rule only sees queued stops. stop() and emergencyStop() use 
+     * the priority lane and never get here; what does is a STOP step of a 
+     * script played one command at a time. Such a stop is sent only after 
+     * the move before it has been echoed, i.e. finished, so the rover is 
+     * already standing when the next move would have overridden it anyway.
+     * @return The command to send in place of both, or null if incompatible.
+     */
+    static A4jSerialCommand coalesce(A4jSerialCommand first, A4jSerialCommand second) {
+        if (first.attempts > 0 || second.attempts > 0 
+                || first.script != null || second.script != null 
+                || first.timeout >= 0 || second.timeout >= 0) {
+            return null;
+        }
+        
+        final A4jSerialCommand merged;
+        if (first.command == second.command && isAdditive(first.command)) {
+            merged = new A4jSerialCommand(first.command, first.argument + second.argument, 
+                    first.command.getDescription() + " " + (first.argument + second.argument) 
+                    + " (coalesced).");
+        } else if (first.command == DroneCommand.STOP && second.command.isMotion()) {
+            merged = second.hasArgument ? 
+                    new A4jSerialCommand(second.command, second.argument, second.description) : 
+                    new A4jSerialCommand(second.command, second.description);
+        } else {
+            return null;
+        }
+
+        // If any part predates a stop, all of it does.
+        merged.epoch = Math.min(first.epoch, second.epoch);
+        merged.originals = new ArrayList<>(first.getOriginals());
+        merged.originals.addAll(second.getOriginals());
+        merged.response.whenComplete((v, ex) -> {
+            for (A4jSerialCommand original : merged.originals) {
+                if (ex != null) {
+                    original.response.completeExceptionally(ex);
+                } else {
+                    original.values = merged.values;
+                    original.response.complete(v);
+                }
+            }
+        });
+        return merged;
+    }
+
+    /*
+     The caller-visible commands this one represents (just itself unless 
+     it was coalesced).
+     */
+    List<A4jSerialCommand> getOriginals() {
+        return originals == null ? Collections.singletonList(this) : originals;
+    }
+    /*
+     Coalescing - end
+     */
+
+    int getSequence() {
+        return sequence;
+    }
+
+    void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    /*
+     Text wire format: "F:20\r\n", or "F:20#7\r\n" with a sequence id when 
+     the link is pipelined. The firmware echoes the sequence id back after 
+     any value it returns, e.g. ">f:123 cm#7".
+     */
+    String toWireString(boolean pipelined) {
+        StringBuilder sb = new StringBuilder(16).append(command.getCommand());
+        if (hasArgument) {
+            sb.append(argument);
+        }
+        if (script != null) {
+            sb.append(script.toText());
+        }
+        if (pipelined) {
+            sb.append(SEQUENCE_SEPARATOR).append(sequence);
+        }
+        return sb.append("\r\n").toString();
+    }
+
+    @Override
+    public String toString() {
+        return description + " [" + command.getCommand() + (hasArgument ? argument : "") 
+                + SEQUENCE_SEPARATOR + sequence + "]";
+    }
+}
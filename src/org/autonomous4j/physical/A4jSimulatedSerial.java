@@ -0,0 +1,539 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Mark A. Heckler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.autonomous4j.physical;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
+import static org.autonomous4j.physical.A4jLandController.logIt;
+
+/**
+ * A4jSimulatedSerial stands in for the rover's microcontroller so the land 
+ * side can be exercised (and benchmarked) without hardware. Set the 
+ * 'serialPort' property to "sim" to use it.
+ * 
+ * It speaks the firmware's text protocol: every command is echoed (with its 
+ * sequence id if one was sent), pings answer with the distance measured in 
+ * a simulated room, 'a:' answers "left,forward,right", 's:' streams samples, 
+ * 'P:' runs a script and reports ">p:<step>" per step. Binary framing is 
+ * declined (">M:0"), so the controller stays with text.
+ * 
+ * The room is a width x depth rectangle (cm) with optional box obstacles; 
+ * the rover starts at a given position and heading (degrees, 0 = +x, 
+ * counter-clockwise) and can't drive through walls. Moves take 
+ * distance/speed and turns angle/turnRate, blocking the "firmware" just as 
+ * delay() does on the board; a speed or turn rate of 0 makes them instant. 
+ * A stop arriving mid-move ends the move early, as firmware that watches 
+ * the port while moving would (its echo still follows the move's). 
+ * Each byte costs 10 bit times at the configured baud rate in each 
+ * direction, plus a fixed one-way latency.
+ * 
+ * A second board on the same rover (e.g. the sonar array on 'sensorPort') 
+ * is created with A4jSimulatedSerial(board): it has its own link and 
+ * firmware thread but measures the room from the shared rover's position, 
+ * which advances continuously while the other board moves it.
+ * 
+ * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
+ */
+public class A4jSimulatedSerial extends A4jSerial {
+    public static final String PORT_PREFIX = "sim";
+    public static final int DEFAULT_ROOM_WIDTH = 500;
+    public static final int DEFAULT_ROOM_DEPTH = 400;
+    public static final double DEFAULT_SPEED = 50;
+    public static final double DEFAULT_TURN_RATE = 180;
+    public static final long DEFAULT_LATENCY = 2;
+    private static final double MAX_RANGE = 400;
+    private static final int BITS_PER_BYTE = 10;
+
+    private final Rover rover;
+    private long latencyNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LATENCY);
+
+    private String portName;
+    private SerialPortEventListener listener;
+    private volatile boolean connected = false;
+    // "Firmware" runs commands one at a time; the line delivers bytes to us.
+    private ScheduledExecutorService firmware;
+    private ScheduledExecutorService line;
+    private long toFirmwareFree;
+    private long toHostFree;
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final StringBuilder command = new StringBuilder();
+    private ScheduledFuture<?> stream;
+
+    public A4jSimulatedSerial() {
+        this.rover = new Rover();
+    }
+
+    /**
+     * Another board on the same rover as the given one, over the same kind 
+     * of line (its latency is copied; set a different one if need be).
+     * @param board Simulated board whose rover (room, position) to share.
+     */
+    public A4jSimulatedSerial(A4jSimulatedSerial board) {
+        this.rover = board.rover;
+        this.latencyNanos = board.latencyNanos;
+    }
+
+    public A4jSimulatedSerial setRoom(double width, double depth) {
+        synchronized (rover) {
+            rover.width = width;
+            rover.depth = depth;
+        }
+        return this;
+    }
+
+    public A4jSimulatedSerial addObstacle(double x, double y, double width, double depth) {
+        synchronized (rover) {
+            rover.obstacles.add(new double[] {x, y, x + width, y + depth});
+        }
+        return this;
+    }
+
+    public A4jSimulatedSerial setStart(double x, double y, double heading) {
+        synchronized (rover) {
+            rover.x = x;
+            rover.y = y;
+            rover.heading = heading;
+        }
+        return this;
+    }
+
+    public A4jSimulatedSerial setSpeed(double cmPerSecond) {
+        synchronized (rover) {
+            rover.speed = cmPerSecond;
+        }
+        return this;
+    }
+
+    public A4jSimulatedSerial setTurnRate(double degreesPerSecond) {
+        synchronized (rover) {
+            rover.turnRate = degreesPerSecond;
+        }
+        return this;
+    }
+
+    public A4jSimulatedSerial setLatency(long latencyMs) {
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+        return this;
+    }
+
+    @Override
+    public boolean connect(String portName, SerialPortEventListener listener) throws Exception {
+        this.listener = listener;
+        return connect(portName);
+    }
+
+    @Override
+    public boolean connect(String portName) throws Exception {
+        this.portName = portName;
+        firmware = Executors.newSingleThreadScheduledExecutor();
+        line = Executors.newSingleThreadScheduledExecutor();
+        toFirmwareFree = toHostFree = System.nanoTime();
+        connected = true;
+        logIt("Simulated port '" + portName + "' open at " + getBaudRate() + " baud, " + rover + ".");
+        
+        return connected;
+    }
+
+    @Override
+    public void addEventListener(SerialPortEventListener listener) throws Exception {
+        this.listener = listener;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public boolean disconnect() {
+        if (connected) {
+            connected = false;
+            firmware.shutdownNow();
+            line.shutdownNow();
+            logIt("Disconnecting: simulated port closed.");
+        }
+        
+        return connected;
+    }
+
+    @Override
+    public void writeBytes(byte[] data) {
+        if (!connected) {
+            return;
+        }
+        byte[] copy = data.clone();
+        long arrival = transmit(copy.length, true);
+        firmware.schedule(() -> firmwareReceived(copy), arrival, TimeUnit.NANOSECONDS);
+        if (containsStop(copy)) {
+            line.schedule(rover::halt, arrival, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public byte[] readBytes(int byteCount) {
+        synchronized (received) {
+            byte[] all = received.toByteArray();
+            int count = Math.min(byteCount, all.length);
+            received.reset();
+            received.write(all, count, all.length - count);
+            return Arrays.copyOf(all, count);
+        }
+    }
+
+    private static boolean containsStop(byte[] data) {
+        char stop = DroneCommand.STOP.getCommand().charAt(0);
+        for (int i = 0; i + 1 < data.length; i++) {
+            if (data[i] == stop && data[i + 1] == ':' && (i == 0 || data[i - 1] == '\n')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     Delay (ns from now) until byteCount bytes sent now have fully arrived: 
+     they queue behind whatever is still on the wire in that direction.
+     */
+    private synchronized long transmit(int byteCount, boolean toFirmware) {
+        long now = System.nanoTime();
+        long start = Math.max(now, toFirmware ? toFirmwareFree : toHostFree);
+        long end = start + byteCount * BITS_PER_BYTE * 1_000_000_000L / getBaudRate();
+        if (toFirmware) {
+            toFirmwareFree = end;
+        } else {
+            toHostFree = end;
+        }
+        return end + latencyNanos - now;
+    }
+
+    private void send(String response) {
+        if (!connected) {
+            return;
+        }
+        byte[] data = response.getBytes(StandardCharsets.US_ASCII);
+        line.schedule(() -> {
+            int available;
+            synchronized (received) {
+                received.write(data, 0, data.length);
+                available = received.size();
+            }
+            if (listener != null) {
+                listener.serialEvent(new SerialPortEvent(portName, SerialPortEvent.RXCHAR, available));
+            }
+        }, transmit(data.length, false), TimeUnit.NANOSECONDS);
+    }
+
+    /* Firmware side - begin */
+    private void firmwareReceived(byte[] data) {
+        for (byte b : data) {
+            if (b == '\n') {
+                try {
+                    execute(command.toString().trim());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(A4jSimulatedSerial.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                command.setLength(0);
+            } else if (b != '\r') {
+                command.append((char) b);
+            }
+        }
+    }
+
+    private void execute(String text) throws InterruptedException {
+        int colon = text.indexOf(':');
+        if (colon != 1) {
+            if (!text.isEmpty()) {
+                send("Unknown command: " + text + "\r\n");
+            }
+            return;
+        }
+        int hash = text.indexOf(A4jSerialCommand.SEQUENCE_SEPARATOR);
+        String argument = text.substring(2, hash < 0 ? text.length() : hash);
+        String sequence = hash < 0 ? "" : text.substring(hash);
+        DroneCommand cmd = DroneCommand.fromCode(text.charAt(0));
+        if (cmd == null) {
+            send("Unknown command: " + text + "\r\n");
+            return;
+        }
+        
+        String echo = argument;
+        switch (cmd) {
+            case FORWARD:
+                move(number(argument));
+                break;
+            case BACK:
+                move(-number(argument));
+                break;
+            case LEFT:
+                turn(number(argument));
+                break;
+            case RIGHT:
+                turn(-number(argument));
+                break;
+            case DRIVE:
+                rover.go(Double.POSITIVE_INFINITY);
+                break;
+            case STOP:
+                rover.halt();
+                break;
+            case PINGF:
+                echo = String.valueOf(rover.sonar(0));
+                break;
+            case PINGL:
+                echo = String.valueOf(rover.sonar(90));
+                break;
+            case PINGR:
+                echo = String.valueOf(rover.sonar(-90));
+                break;
+            case PINGA:
+                echo = rover.sweep();
+                break;
+            case STREAM:
+                stream(number(argument));
+                break;
+            case PROGRAM:
+                runScript(argument);
+                break;
+            case BINARY:
+                echo = "0";
+                break;
+            default:
+                break;
+        }
+        send(">" + cmd.getCommand() + echo + sequence + "\r\n");
+    }
+
+    private static long number(String argument) {
+        return argument.isEmpty() ? 0 : Long.parseLong(argument);
+    }
+
+    private void runScript(String script) throws InterruptedException {
+        int step = 0;
+        int i = 0;
+        while (i < script.length()) {
+            char code = script.charAt(i++);
+            int start = i;
+            while (i < script.length() && (Character.isDigit(script.charAt(i)) || script.charAt(i) == '-')) {
+                i++;
+            }
+            long argument = number(script.substring(start, i));
+            switch (code) {
+                case 'F':
+                    move(argument);
+                    break;
+                case 'B':
+                    move(-argument);
+                    break;
+                case 'L':
+                    turn(argument);
+                    break;
+                case 'R':
+                    turn(-argument);
+                    break;
+                default:
+                    rover.halt();
+                    break;
+            }
+            send(">" + DroneCommand.PROGRESS.getCommand() + (++step) + "\r\n");
+        }
+    }
+
+    private void stream(long intervalMs) {
+        if (stream != null) {
+            stream.cancel(false);
+            stream = null;
+        }
+        if (intervalMs > 0) {
+            stream = firmware.scheduleAtFixedRate(
+                    () -> send(">" + DroneCommand.PINGA.getCommand() + rover.sweep() + "\r\n"), 
+                    intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+     Fixed-distance moves and turns keep this board's firmware busy for as 
+     long as they take; the rover's position meanwhile advances with time.
+     */
+    private void move(long cm) throws InterruptedException {
+        rover.finish(rover.go(cm));
+    }
+
+    private void turn(long degrees) throws InterruptedException {
+        long duration = rover.turn(degrees);
+        TimeUnit.NANOSECONDS.sleep(duration);
+    }
+    /* Firmware side - end */
+
+    /* Room model - begin */
+    private static final class Rover {
+        private double width = DEFAULT_ROOM_WIDTH;
+        private double depth = DEFAULT_ROOM_DEPTH;
+        private final List<double[]> obstacles = new ArrayList<>();
+        private double x = DEFAULT_ROOM_WIDTH / 2.0;
+        private double y = DEFAULT_ROOM_DEPTH / 2.0;
+        private double heading = 90;
+        private double speed = DEFAULT_SPEED;
+        private double turnRate = DEFAULT_TURN_RATE;
+        // Current motion: direction (+1/-1) and distance still to cover
+        private double direction;
+        private double remaining;
+        private long since;
+
+        /*
+         Start moving cm (backwards if negative; infinite to drive until 
+         halted). Returns how long the move takes, 0 if instant.
+         */
+        synchronized long go(double cm) {
+            advance();
+            direction = Math.signum(cm);
+            remaining = Math.abs(cm);
+            if (speed <= 0) {
+                if (!Double.isInfinite(remaining)) {
+                    step(direction * remaining);
+                }
+                remaining = 0;
+                return 0;
+            }
+            return Double.isInfinite(remaining) ? 0 : (long) (remaining / speed * 1e9);
+        }
+
+        /*
+         Wait out the current move unless halted first, then complete it 
+         exactly (timers are never that precise).
+         */
+        synchronized void finish(long durationNanos) throws InterruptedException {
+            long end = System.nanoTime() + durationNanos;
+            long left;
+            while (remaining > 0 && (left = end - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            if (!Double.isInfinite(remaining)) {
+                step(direction * remaining);
+                remaining = 0;
+            }
+            halt();
+        }
+
+        synchronized void halt() {
+            advance();
+            remaining = 0;
+            notifyAll();
+        }
+
+        synchronized long turn(double degrees) {
+            halt();
+            heading = (heading + degrees) % 360;
+            return turnRate > 0 ? (long) (Math.abs(degrees) / turnRate * 1e9) : 0;
+        }
+
+        /*
+         Bring the position up to date with the motion in progress.
+         */
+        private void advance() {
+            long now = System.nanoTime();
+            if (remaining > 0) {
+                double travel = Math.min(remaining, speed * (now - since) / 1e9);
+                step(direction * travel);
+                remaining -= travel;
+            }
+            since = now;
+        }
+
+        /*
+         Move along the heading (backwards if negative), stopping at anything hit.
+         */
+        private void step(double cm) {
+            double angle = Math.toRadians(cm < 0 ? heading + 180 : heading);
+            double travel = Math.min(Math.abs(cm), range(angle));
+            x += travel * Math.cos(angle);
+            y += travel * Math.sin(angle);
+        }
+
+        synchronized long sonar(double offset) {
+            advance();
+            return Math.round(Math.min(MAX_RANGE, range(Math.toRadians(heading + offset))));
+        }
+
+        synchronized String sweep() {
+            return sonar(90) + "," + sonar(0) + "," + sonar(-90);
+        }
+
+        /*
+         Distance along the given direction to the nearest wall or obstacle.
+         */
+        private double range(double angle) {
+            double dx = Math.cos(angle);
+            double dy = Math.sin(angle);
+            double nearest = Math.min(
+                    dx > 1e-9 ? (width - x) / dx : dx < -1e-9 ? -x / dx : Double.MAX_VALUE, 
+                    dy > 1e-9 ? (depth - y) / dy : dy < -1e-9 ? -y / dy : Double.MAX_VALUE);
+            for (double[] box : obstacles) {
+                nearest = Math.min(nearest, hit(box, dx, dy));
+            }
+            return Math.max(0, nearest);
+        }
+
+        private double hit(double[] box, double dx, double dy) {
+            double near = 0;
+            double far = Double.MAX_VALUE;
+            double[] origin = {x, y};
+            double[] direction = {dx, dy};
+            for (int axis = 0; axis < 2; axis++) {
+                double min = box[axis];
+                double max = box[axis + 2];
+                if (Math.abs(direction[axis]) < 1e-9) {
+                    if (origin[axis] < min || origin[axis] > max) {
+                        return Double.MAX_VALUE;
+                    }
+                } else {
+                    double t1 = (min - origin[axis]) / direction[axis];
+                    double t2 = (max - origin[axis]) / direction[axis];
+                    near = Math.max(near, Math.min(t1, t2));
+                    far = Math.min(far, Math.max(t1, t2));
+                }
+            }
+            return near <= far ? near : Double.MAX_VALUE;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "room " + width + "x" + depth + " cm, " + obstacles.size() + " obstacle(s)";
+        }
+    }
+    /* Room model - end */
+}
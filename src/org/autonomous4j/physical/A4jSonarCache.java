@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Mark A. Heckler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.autonomous4j.physical;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A4jSonarCache keeps the latest distance reported for each sonar direction 
+ * along with the time it was received.
+ * 
+ * Updates come from the serial event thread only; readers never block. Each 
+ * slot is guarded by a version counter (odd while an update is underway) so 
+ * a reader always sees a distance together with its own timestamp.
+ * 
+ * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
+ */
+final class A4jSonarCache {
+    static final int LEFT = 0;
+    static final int FORWARD = 1;
+    static final int RIGHT = 2;
+    static final long NONE = -1;
+
+    private final AtomicLongArray versions = new AtomicLongArray(3);
+    private final AtomicLongArray distances = new AtomicLongArray(3);
+    private final AtomicLongArray timestamps = new AtomicLongArray(3);
+
+    static int directionOf(DroneCommand command) {
+        switch (command) {
+            case PINGL:
+                return LEFT;
+            case PINGF:
+                return FORWARD;
+            case PINGR:
+                return RIGHT;
+            default:
+                return -1;
+        }
+    }
+
+    void update(int direction, long distance, long nanos) {
+        long version = versions.get(direction);
+        versions.set(direction, version + 1);
+        distances.set(direction, distance);
+        timestamps.set(direction, nanos);
+        versions.set(direction, version + 2);
+    }
+
+    /**
+     * Latest distance for a direction, if it is recent enough.
+     * @param direction LEFT, FORWARD or RIGHT.
+     * @param maxAgeNanos Oldest acceptable sample age.
+     * @return Distance in cm, or NONE if there is no fresh sample.
+     */
+    long getIfFresh(int direction, long maxAgeNanos) {
+        long before, after, distance, stamp;
+        do {
+            before = versions.get(direction);
+            distance = distances.get(direction);
+            stamp = timestamps.get(direction);
+            after = versions.get(direction);
+        } while (before != after || (before & 1) != 0);
+
+        if (before == 0 || System.nanoTime() - stamp > maxAgeNanos) {
+            return NONE;
+        }
+        return distance;
+    }
+}
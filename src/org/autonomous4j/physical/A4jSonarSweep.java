@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Mark A. Heckler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.autonomous4j.physical;
+
+/**
+ * A4jSonarSweep holds the left, forward and right sonar distances (in cm) 
+ * taken together by a single "ping all" round trip.
+ * 
+ * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
+ */
+public final class A4jSonarSweep {
+    private final long left;
+    private final long forward;
+    private final long right;
+
+    public A4jSonarSweep(long left, long forward, long right) {
+        this.left = left;
+        this.forward = forward;
+        this.right = right;
+    }
+
+    /*
+     Firmware reports the sweep as ">a:<left> <forward> <right>"; missing 
+     values read as 0, same as a failed single ping.
+     */
+    static A4jSonarSweep fromValues(long[] values) {
+        if (values == null) {
+            return new A4jSonarSweep(0, 0, 0);
+        }
+        return new A4jSonarSweep(values.length > 0 ? values[0] : 0, 
+                values.length > 1 ? values[1] : 0, 
+                values.length > 2 ? values[2] : 0);
+    }
+
+    public long getLeft() {
+        return left;
+    }
+
+    public long getForward() {
+        return forward;
+    }
+
+    public long getRight() {
+        return right;
+    }
+
+    @Override
+    public String toString() {
+        return "Sweep\tLeft(" + left + ")\tForward(" + forward + ")\tRight(" + right + ")";
+    }
+}
@@ -29,13 +29,26 @@ package org.autonomous4j.physical;
  */
 public enum DroneCommand {
     FORWARD ("F:", "Forward"),
+    DRIVE ("D:", "Drive"),
     BACK ("B:", "Backward"),
     LEFT ("L:", "Turn Left"),
     RIGHT ("R:", "Turn Right"),
     STOP ("S:", "Stop"),
     PINGF ("f:", "Ping Forward"),
     PINGL ("l:", "Ping Left"),
-    PINGR ("r:", "Ping Right");
+    PINGR ("r:", "Ping Right"),
+    PINGA ("a:", "Ping All"),
+    STREAM ("s:", "Stream Sonar"),
+    PROGRAM ("P:", "Run Script"),
+    PROGRESS ("p:", "Script Step"),
+    BINARY ("M:", "Binary Framing");
+
+    private static final DroneCommand[] BY_CODE = new DroneCommand[128];
+    static {
+        for (DroneCommand cmd : values()) {
+            BY_CODE[cmd.command.charAt(0)] = cmd;
+        }
+    }
 
     private final String command;
     private final String description;
@@ -44,6 +57,16 @@ public enum DroneCommand {
         this.command = command;
         this.description = description;
     }
+
+    /**
+     * Look up a command by the single character code that precedes the ':' 
+     * on the wire (e.g. 'F' for FORWARD).
+     * @param code Code character/byte as received from the microcontroller.
+     * @return Matching DroneCommand, or null if the code is unknown.
+     */
+    public static DroneCommand fromCode(int code) {
+        return (code >= 0 && code < BY_CODE.length) ? BY_CODE[code] : null;
+    }
     
     public String getCommand() {
         return command;
@@ -52,4 +75,23 @@ public enum DroneCommand {
     public String getDescription() {
         return description;
     }
+
+    /**
+     * Whether the command moves the rover. Motion commands are not retried 
+     * by default after a timeout, since the lost byte may have been the echo 
+     * and repeating the command would move the rover twice.
+     * @return True for forward, drive, back, left, right and scripts.
+     */
+    public boolean isMotion() {
+        return this == FORWARD || this == DRIVE || this == BACK || this == LEFT 
+                || this == RIGHT || this == PROGRAM;
+    }
+
+    /**
+     * One-byte opcode used in binary framing; same as the text code.
+     * @return Opcode byte for this command.
+     */
+    public byte getOpcode() {
+        return (byte) command.charAt(0);
+    }
 }
@@ -23,20 +23,57 @@
  */
 package org.autonomous4j.tracking;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.PrintStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.autonomous4j.interfaces.A4jPublisher;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 /**
+ * A4jBlackBox records every movement of a flight. Movements are appended to 
+ * InProgress.afb (A4jFlightLog binary format) as they happen; at shutdown 
+ * that file simply becomes LastFlight.afb, or, with setFlightFormat() 
+ * COMPACT or COMPRESSED, is encoded into LastFlight.afc (A4jFlightCodec). 
+ * loadFlight() reads either back into Movements for replay, replayFlight() 
+ * a chunk at a time. In memory the flight is an A4jFlightRecording 
+ * (primitive columns); the Movements it hands out are views onto it.
+ * Given an A4jFlightArchive instead, the black box appends to the archive's 
+ * rolling segments, keeping many flights that can be replayed from any 
+ * time or movement number.
+ * 
+ * How soon a movement reaches storage depends on the Durability chosen: 
+ * PER_RECORD flushes on the recording thread before recordAction() or 
+ * recordDuration() returns, GROUP_COMMIT (the default) has a background 
+ * thread flush whatever changed every window ms, and ON_SHUTDOWN leaves it 
+ * to the OS until shutdown(). getStats() shows what flushing costs.
+ * 
+ * Durations are measured, not taken on trust: a movement lasts from its 
+ * recordAction() until recordDuration() or the next recordAction(), timed 
+ * with System.nanoTime(). Timestamps come from the same monotonic clock 
+ * (anchored to the wall clock when the black box starts), so they never run 
+ * backwards within a flight. The gap between the duration asked for and the 
+ * one measured is the command's scheduling jitter, kept in getStats().
+ * 
+ * Movements are also published over MQTT, but never on the recording 
+ * thread: publish() only queues the message and a background thread talks 
+ * to the broker. The queue is bounded; if the broker is slow or missing, 
+ * the oldest waiting messages are dropped so the newest get through. 
+ * getStats() counts what was published or dropped and how long it took.
  *
  * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
  */
@@ -44,56 +81,239 @@ public class A4jBlackBox implements A4jPublisher {
     private final static String TOP_LEVEL_TOPIC = "a4jflight";
 //    public enum Action {FORWARD, BACKWARD, LEFT, RIGHT, UP, DOWN, 
 //        HOVER, TAKEOFF, LAND, LIGHTS};
-    public enum Action {FORWARD, BACKWARD, LEFT, RIGHT, UP, DOWN, 
-        STAY, TAKEOFF, LAND, LIGHTS};
-    private float xDelta = 0;
-    private float yDelta = 0;
-    private float zDelta = 0;
+    /*
+     Each action's code is what flight logs store, so it must stay the same 
+     when actions are added or reordered: new actions get new codes, and a 
+     code is never reused.
+     */
+    public enum Action {FORWARD(0), BACKWARD(1), LEFT(2), RIGHT(3), UP(4), DOWN(5), 
+        STAY(6), TAKEOFF(7), LAND(8), LIGHTS(9);
+        private static final Action[] BY_CODE = new Action[128];
+        static {
+            for (Action action : values()) {
+                BY_CODE[action.code] = action;
+            }
+        }
+
+        private final byte code;
+
+        Action(int code) {
+            this.code = (byte) code;
+        }
+
+        public byte getCode() {
+            return code;
+        }
+
+        /**
+         * @param code Code as stored in a flight log.
+         * @return Matching Action, or null if the code is unknown.
+         */
+        public static Action fromCode(int code) {
+            return (code >= 0 && code < BY_CODE.length) ? BY_CODE[code] : null;
+        }
+    };
+    public enum Durability {PER_RECORD, GROUP_COMMIT, ON_SHUTDOWN};
+    public enum FlightFormat {BINARY, COMPACT, COMPRESSED};
+    public final static long DEFAULT_GROUP_COMMIT_WINDOW = 100;
     private final static int DEFAULT_SPEED = 20;
-    private final List<Movement> recording = new ArrayList<>();
-    private static PrintStream flightInProgress = null;
+    public final static String IN_PROGRESS = "InProgress.afb";
+    public final static String LAST_FLIGHT = "LastFlight.afb";
+    public final static String LAST_FLIGHT_COMPACT = "LastFlight.afc";
+    public final static int PUBLISH_QUEUE_CAPACITY = 64;
+    private final static long RECONNECT_INTERVAL = 1000;
+    private final static long PUBLISH_TIMEOUT = 1000;
+    private final static long DISCONNECT_QUIESCE = 100;
+    private final static long SHUTDOWN_TIMEOUT = 3 * PUBLISH_TIMEOUT + DISCONNECT_QUIESCE;
+    public final static String DEFAULT_BROKER = "tcp://localhost:1883";
+    private final A4jFlightRecording recording = new A4jFlightRecording();
+    private volatile A4jFlightLog flightInProgress = null;
+    private final A4jFlightArchive archive;
+    private final Durability durability;
+    private volatile FlightFormat flightFormat = FlightFormat.BINARY;
+    private volatile Path lastFlight = null;
+    private final A4jRecorderStats stats = new A4jRecorderStats();
+    private ScheduledExecutorService flusher;
+    private final BlockingQueue<Outgoing> outgoing = 
+            new ArrayBlockingQueue<>(PUBLISH_QUEUE_CAPACITY);
+    private final Thread publisher;
+    private volatile boolean publishing = true;
+    private volatile String broker = DEFAULT_BROKER;
     private MqttClient client;
-    private final MqttMessage msg;
+    private long lastConnectAttempt = 0;
+    // Monotonic clock for timestamps and durations
+    private final long epochMillis = System.currentTimeMillis();
+    private final long epochNanos = System.nanoTime();
+    private long movementStarted = 0;
+    // Start of the current hold: the movement's start or the last recordDuration()
+    private long holdStarted = 0;
+    private boolean movementOpen = false;
 
     public A4jBlackBox() {
-        flightInProgress = openLog("InProgress.afr");
-        msg = new MqttMessage();
-        
-        try {
-            client = new MqttClient("tcp://localhost:1883", "a4jflightrecorder");
-            client.connect();            
-        } catch (MqttException ex) {
-            Logger.getLogger(A4jBlackBox.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        this(Durability.GROUP_COMMIT, DEFAULT_GROUP_COMMIT_WINDOW);
     }
 
-    public PrintStream openLog(String fileName) {
-        PrintStream logFile = null;
-        
-        try {
-            logFile = new PrintStream(new FileOutputStream(new File(fileName)), true);
-        } catch (FileNotFoundException ex) {
-            Logger.getLogger(A4jBlackBox.class.getName()).log(Level.SEVERE, null, ex);
+    /**
+     * @param durability When recorded movements are flushed to storage.
+     * @param windowMs Group commit interval (GROUP_COMMIT only).
+     */
+    public A4jBlackBox(Durability durability, long windowMs) {
+        this(durability, windowMs, null);
+    }
+
+    /**
+     * @param durability When recorded movements are flushed to storage.
+     * @param windowMs Group commit interval (GROUP_COMMIT only).
+     * @param archive Where to record, or null for InProgress.afb.
+     */
+    public A4jBlackBox(Durability durability, long windowMs, A4jFlightArchive archive) {
+        this.durability = durability;
+        this.archive = archive;
+        if (archive == null) {
+            try {
+                flightInProgress = A4jFlightLog.create(Paths.get(IN_PROGRESS));
+            } catch (IOException ex) {
+                Logger.getLogger(A4jBlackBox.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        if (durability == Durability.GROUP_COMMIT 
+                && (flightInProgress != null || archive != null)) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "A4jBlackBox-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, windowMs, windowMs, TimeUnit.MILLISECONDS);
         }
         
-        return logFile;
+        // The broker connection is made (and remade) by the publisher thread
+        publisher = new Thread(this::publishLoop, "A4jBlackBox-publisher");
+        publisher.setDaemon(true);
+        publisher.start();
     }
-    
+
     public void shutdown() {
-        if (flightInProgress != null) {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (archive != null) {
+            try {
+                flush();
+                flightInProgress = null;
+                archive.close();
+            } catch (IOException ex) {
+                Logger.getLogger(A4jBlackBox.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        } else if (flightInProgress != null) {
             try {
+                flush();
                 flightInProgress.close();
-                client.disconnect();
-            } catch (MqttException ex) {
+                flightInProgress = null;
+                // The log already holds the whole flight; just keep it.
+                lastFlight = Files.move(Paths.get(IN_PROGRESS), Paths.get(LAST_FLIGHT), 
+                        StandardCopyOption.REPLACE_EXISTING);
+                if (flightFormat != FlightFormat.BINARY) {
+                    // Fixed-width records were only needed while durations 
+                    // could still change; a finished flight is kept compact.
+                    Path compact = Paths.get(LAST_FLIGHT_COMPACT);
+                    A4jFlightCodec.compact(lastFlight, compact, 
+                            flightFormat == FlightFormat.COMPRESSED);
+                    Files.delete(lastFlight);
+                    lastFlight = compact;
+                }
+            } catch (IOException ex) {
                 Logger.getLogger(A4jBlackBox.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
-        
-        try (PrintStream flightComplete = openLog("LastFlight.afr")) {
-            recording.stream().forEach((curMov) -> {
-                flightComplete.println(curMov.getFlightRecordEntry());
-            });
-            flightComplete.close();
+        // Messages queued before the pill are still sent while the broker 
+        // takes them; the first failure drops the rest (see publishLoop()).
+        publishing = false;
+        while (!outgoing.offer(SHUTDOWN)) {
+            if (outgoing.poll() != null) {
+                stats.publishDropped();
+            }
+        }
+        try {
+            // One send, one connect and the disconnect, each time-limited
+            publisher.join(SHUTDOWN_TIMEOUT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (publisher.isAlive()) {
+            Logger.getLogger(A4jBlackBox.class.getName()).log(Level.WARNING,
+                    "Publisher still busy after {0} ms; abandoning it.", SHUTDOWN_TIMEOUT);
+            publisher.interrupt();
+        }
+    }
+
+    /**
+     * Read a recorded flight back, e.g. for replay. The whole flight is held 
+     * in memory; replayFlight() takes a long one a chunk at a time.
+     * @param fileName Flight log, such as LAST_FLIGHT, or a compact flight 
+     * (A4jFlightCodec).
+     * @return Movements in recorded order.
+     * @throws IOException If the file can't be read or isn't a flight log.
+     */
+    public List<Movement> loadFlight(String fileName) throws IOException {
+        return loadFlight(Paths.get(fileName));
+    }
+
+    public List<Movement> loadFlight(Path file) throws IOException {
+        if (A4jFlightCodec.isCompact(file)) {
+            try (A4jFlightCodec.Decoder decoder = A4jFlightCodec.read(file)) {
+                return decoder.read(Integer.MAX_VALUE);
+            }
+        }
+        try (A4jFlightLog.Reader reader = A4jFlightLog.read(file)) {
+            A4jFlightRecording flight = new A4jFlightRecording(reader.size());
+            while (reader.next()) {
+                flight.add(reader.getAction(), reader.getSpeed(), 
+                        reader.getDuration(), reader.getTimestamp());
+            }
+            return flight;
+        }
+    }
+
+    /**
+     * Replay a recorded flight a chunk of movements at a time, so that only 
+     * one chunk is ever held in memory.
+     * @param file Flight log or compact flight (A4jFlightCodec).
+     * @param chunk Most movements handed over at once.
+     * @param replay Receives each chunk in recorded order, e.g. 
+     * brain::processRecordedMovements.
+     * @throws IOException If the file can't be read or isn't a flight log.
+     */
+    public void replayFlight(Path file, int chunk, Consumer<List<Movement>> replay) throws IOException {
+        if (chunk <= 0) {
+            throw new IllegalArgumentException("Chunk must hold at least one movement.");
+        }
+        if (A4jFlightCodec.isCompact(file)) {
+            try (A4jFlightCodec.Decoder decoder = A4jFlightCodec.read(file)) {
+                List<Movement> movements;
+                while (!(movements = decoder.read(chunk)).isEmpty()) {
+                    replay.accept(movements);
+                }
+            }
+            return;
+        }
+        try (A4jFlightLog.Reader reader = A4jFlightLog.read(file)) {
+            A4jFlightRecording movements = new A4jFlightRecording(Math.min(chunk, reader.size()));
+            while (reader.next()) {
+                movements.add(reader.getAction(), reader.getSpeed(), 
+                        reader.getDuration(), reader.getTimestamp());
+                if (movements.size() == chunk) {
+                    replay.accept(movements);
+                    movements = new A4jFlightRecording(chunk);
+                }
+            }
+            if (!movements.isEmpty()) {
+                replay.accept(movements);
+            }
         }
     }
     
@@ -103,61 +323,204 @@ public class A4jBlackBox implements A4jPublisher {
     }
     
     public void recordAction(Action action, int speed) {
-        Movement curMov = new Movement(action, speed, 0);
-        recording.add(curMov);
-        flightInProgress.println(curMov.getFlightRecordEntry());
+        long now = System.nanoTime();
+        if (movementOpen) {
+            // The previous movement lasted until this one took over
+            setDuration(measured(now));
+        }
+        movementStarted = holdStarted = now;
+        movementOpen = true;
+        long timestamp = epochMillis + (now - epochNanos) / 1_000_000;
+        recording.add(action, speed, 0, timestamp);
+        try {
+            if (archive != null) {
+                // Rolls to a new segment when the current one is full
+                flightInProgress = archive.writable(timestamp);
+            }
+            if (flightInProgress != null) {
+                flightInProgress.append(action, speed, 0, timestamp);
+            }
+        } catch (IOException ex) {
+            if (archive != null) {
+                // Never write through to a segment the archive has closed
+                flightInProgress = null;
+            }
+            Logger.getLogger(A4jBlackBox.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        if (durability == Durability.PER_RECORD) {
+            flush();
+        }
         publish();
     }
     
-    public void recordDuration(long duration) {
-        // Update the last recorded movement's duration
-        recording.get(recording.size()-1).setDuration(duration);        
+    /**
+     * End the last recorded movement now, recording how long it really 
+     * lasted (in total, if it was held more than once).
+     * @param requested How long this hold was meant to last (ms); the 
+     * difference from the time since the movement started, or since the 
+     * previous recordDuration(), is counted as scheduling jitter.
+     */
+    public void recordDuration(long requested) {
+        if (recording.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        stats.scheduled(recording.getAction(recording.size()-1), 
+                (now - holdStarted) - requested * 1_000_000);
+        holdStarted = now;
+        movementOpen = false;
+        setDuration(measured(now));
+    }
+
+    private long measured(long now) {
+        return now - movementStarted;
+    }
+
+    /*
+     Update the last recorded movement's duration.
+     */
+    private void setDuration(long nanos) {
+        long duration = Math.round(nanos / 1e6);
+        recording.setDuration(recording.size()-1, duration);
+        if (flightInProgress != null) {
+            flightInProgress.setDuration(flightInProgress.size()-1, duration);
+            if (durability == Durability.PER_RECORD) {
+                flush();
+            }
+        }
+    }
+
+    /*
+     Write whatever changed in the in-progress log to storage and time it.
+     */
+    private void flush() {
+        A4jFlightLog log = flightInProgress;
+        if (log != null) {
+            long start = System.nanoTime();
+            int changes = log.force();
+            if (changes > 0) {
+                stats.flushed(System.nanoTime() - start, changes);
+            }
+        }
+    }
+
+    /**
+     * @return Archive being recorded to, or null if recording to InProgress.afb.
+     */
+    public A4jFlightArchive getArchive() {
+        return archive;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public A4jRecorderStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Choose how shutdown() keeps the finished flight (archives always keep 
+     * binary segments).
+     * @param flightFormat BINARY (LastFlight.afb, the default), COMPACT or 
+     * COMPRESSED (LastFlight.afc).
+     * @return This black box (allows chaining).
+     */
+    public A4jBlackBox setFlightFormat(FlightFormat flightFormat) {
+        this.flightFormat = flightFormat;
+        return this;
+    }
+
+    public FlightFormat getFlightFormat() {
+        return flightFormat;
+    }
+
+    /**
+     * Choose the MQTT broker movements are published to. Takes effect on the 
+     * first connection, i.e. set it before recording.
+     * @param broker Broker URI, DEFAULT_BROKER unless set.
+     * @return This black box (allows chaining).
+     */
+    public A4jBlackBox setBroker(String broker) {
+        this.broker = broker;
+        return this;
+    }
+
+    /*
+     Payloads waiting to be published, oldest first (for diagnostics).
+     */
+    List<String> getQueuedMessages() {
+        List<String> queued = new ArrayList<>();
+        for (Outgoing message : outgoing) {
+            if (message != SHUTDOWN) {
+                queued.add(new String(message.payload));
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * @return File the last flight was kept in by shutdown(), or null if 
+     * there is none yet (or the black box records to an archive).
+     */
+    public Path getLastFlight() {
+        return lastFlight;
     }
 
     public List<Movement> getRecording() {
         return recording;
     }
     
+    /**
+     * Movements that undo the flight so far. The displacement is tracked as 
+     * movements are recorded, so this doesn't depend on the flight's length.
+     * @return Moves (at default speed) back to the starting point.
+     */
     public List<Movement> home() {
-        recording.stream().forEach((curMov) -> {
-            // Track the movement delta for this flight
-            switch (curMov.getAction()) {
-                case FORWARD:
-                    xDelta += (curMov.getSpeed() * curMov.getDuration() / 100);
-                    break;
-                case BACKWARD:
-                    xDelta -= (curMov.getSpeed() * curMov.getDuration() / 100);
-                    break;
-                case RIGHT:
-                    yDelta += (curMov.getSpeed() * curMov.getDuration() / 100);
-                    break;
-                case LEFT:
-                    yDelta -= (curMov.getSpeed() * curMov.getDuration() / 100);
-                    break;
-                case UP:
-                    zDelta += (curMov.getSpeed() * curMov.getDuration() / 100);
-                    break;
-                case DOWN:
-                    zDelta -= (curMov.getSpeed() * curMov.getDuration() / 100);
-                    break;
-                //default:
-                // No measured adjustments for takeoff, hover, land, or lights.
-            }
-        });
+        // Track the movement delta for this flight
+        long xDelta = recording.getDisplacementX();
+        long yDelta = recording.getDisplacementY();
+        long zDelta = recording.getDisplacementZ();
         
         List<Movement> homeRec = new ArrayList<>(3);
         homeRec.add(new Movement((xDelta < 0 ? Action.FORWARD : Action.BACKWARD), 
-                DEFAULT_SPEED, (long) xDelta*100/DEFAULT_SPEED));
+                DEFAULT_SPEED, Math.abs(xDelta)*100/DEFAULT_SPEED));
         homeRec.add(new Movement((yDelta < 0 ? Action.RIGHT : Action.LEFT), 
-                DEFAULT_SPEED, (long) yDelta*100/DEFAULT_SPEED));
+                DEFAULT_SPEED, Math.abs(yDelta)*100/DEFAULT_SPEED));
         if (zDelta != 0) {
             // MAH: In honor of The Wrath of Khan, we test for a change in the 
             // third dimension. Technically speaking, we should also test x & y.
             homeRec.add(new Movement((zDelta < 0 ? Action.UP : Action.DOWN), 
-                    DEFAULT_SPEED, (long) zDelta*100/DEFAULT_SPEED));
+                    DEFAULT_SPEED, Math.abs(zDelta)*100/DEFAULT_SPEED));
         }
         return homeRec;
     }
+
+    /* Displacement (for geofencing) - begin */
+    public long getDisplacementX() {
+        return recording.getDisplacementX();
+    }
+
+    public long getDisplacementY() {
+        return recording.getDisplacementY();
+    }
+
+    public long getDisplacementZ() {
+        return recording.getDisplacementZ();
+    }
+
+    /**
+     * Straight-line distance from the starting point, in the same units as 
+     * the displacement (speed * ms / 100).
+     * @return Current distance from home.
+     */
+    public double getDistanceFromHome() {
+        double x = recording.getDisplacementX();
+        double y = recording.getDisplacementY();
+        double z = recording.getDisplacementZ();
+        return Math.sqrt(x * x + y * y + z * z);
+    }
+    /* Displacement (for geofencing) - end */
     
 //    public static void recordMovement(String reading) {
 //        if (flightInProgress != null) {
@@ -172,67 +535,197 @@ public class A4jBlackBox implements A4jPublisher {
         return TOP_LEVEL_TOPIC;
     }
 
+    /**
+     * Queue the latest movement for publishing and return straight away. If 
+     * the queue is full, the oldest waiting message makes room for it.
+     */
     @Override
     public void publish() {
+        if (!publishing) {
+            stats.publishDropped();
+            return;
+        }
+        Movement last = recording.get(recording.size()-1);
+        Outgoing message = new Outgoing(TOP_LEVEL_TOPIC + "/movement", 
+                last.getActionString() + "," + last.getSpeed());
+        while (!outgoing.offer(message)) {
+            Outgoing oldest = outgoing.poll();
+            if (oldest == SHUTDOWN) {
+                // Shut down meanwhile: the pill stays, this message goes
+                outgoing.offer(SHUTDOWN);
+                stats.publishDropped();
+                return;
+            } else if (oldest != null) {
+                stats.publishDropped();
+            }
+        }
+    }
+
+    /*
+     Publisher thread: send queued messages until the SHUTDOWN pill, then 
+     whatever slipped in behind it, then disconnect. Once shutting down, the 
+     first message the broker doesn't take ends the sending: every further 
+     attempt could block for PUBLISH_TIMEOUT.
+     */
+    private void publishLoop() {
+        boolean sending = true;
+        try {
+            Outgoing message;
+            while ((message = outgoing.take()) != SHUTDOWN) {
+                if (!send(message) && !publishing) {
+                    sending = false;
+                    break;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            sending = false;
+        }
+        Outgoing message;
+        while ((message = outgoing.poll()) != null) {
+            if (message == SHUTDOWN) {
+                continue;
+            }
+            if (sending) {
+                sending = send(message);
+            } else {
+                stats.publishDropped();
+            }
+        }
+        if (client != null && client.isConnected()) {
+            try {
+                client.disconnectForcibly(DISCONNECT_QUIESCE, PUBLISH_TIMEOUT);
+            } catch (MqttException ex) {
+                Logger.getLogger(A4jBlackBox.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /*
+     @return False if the message was dropped.
+     */
+    private boolean send(Outgoing message) {
+        if (!connected()) {
+            stats.publishDropped();
+            return false;
+        }
+        try {
+            client.publish(message.topic, new MqttMessage(message.payload));
+            stats.published(System.nanoTime() - message.queued);
+            return true;
+        } catch (MqttException ex) {
+            stats.publishDropped();
+            Logger.getLogger(A4jBlackBox.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+
+    /*
+     Connect to the broker if we aren't, but try at most once per 
+     RECONNECT_INTERVAL; messages arriving in between are dropped.
+     */
+    private boolean connected() {
+        if (client != null && client.isConnected()) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastConnectAttempt < RECONNECT_INTERVAL) {
+            return false;
+        }
+        lastConnectAttempt = now;
         try {
-            msg.setPayload((recording.get(recording.size()-1).getActionString() 
-                    + "," + recording.get(recording.size()-1).getSpeed()).getBytes());
-            client.publish(TOP_LEVEL_TOPIC + "/movement", msg);
+            if (client == null) {
+                // Movements are telemetry: nothing to keep across restarts
+                client = new MqttClient(broker, "a4jflightrecorder", new MemoryPersistence());
+                // A stalled broker mustn't hold the publisher (and shutdown)
+                client.setTimeToWait(PUBLISH_TIMEOUT);
+            }
+            client.connect();
+            return true;
         } catch (MqttException ex) {
             Logger.getLogger(A4jBlackBox.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
         }
+    }
+
+    // Queued by shutdown(): everything ahead of it is still sent
+    private static final Outgoing SHUTDOWN = new Outgoing("", "");
 
+    private static class Outgoing {
+        private final String topic;
+        private final byte[] payload;
+        private final long queued = System.nanoTime();
+
+        private Outgoing(String topic, String payload) {
+            this.topic = topic;
+            this.payload = payload.getBytes();
+        }
     }
     
-    public class Movement {
-        Action action;
-        int speed = 0;
-        long duration = 0;
+    /**
+     * One movement: a view onto a row of an A4jFlightRecording. Movements 
+     * created directly get a recording of their own.
+     */
+    public static class Movement {
+        private final A4jFlightRecording store;
+        private final int index;
 
         public Movement(Action action, int speed, long duration) {
-            this.action = action;
-            this.speed = speed;
-            this.duration = duration;
+            this.store = new A4jFlightRecording(1);
+            this.index = store.add(action, speed, duration, 0);
+        }
+
+        Movement(A4jFlightRecording store, int index) {
+            this.store = store;
+            this.index = index;
         }
         
         public Action getAction() {
-            return action;
+            return store.getAction(index);
         }
 
         public void setAction(Action action) {
-            this.action = action;
+            store.setAction(index, action);
         }
 
         public void setAction(Action action, int speed) {
-            this.speed = speed;
+            store.setSpeed(index, speed);
             setAction(action);
         }
         
         public int getSpeed() {
-            return speed;
+            return store.getSpeed(index);
         }
         
         public long getDuration() {
-            return duration;
+            return store.getDuration(index);
         }
 
         public void setDuration(long duration) {
-            this.duration = duration;
+            store.setDuration(index, duration);
+        }
+
+        /**
+         * @return When the movement was recorded (ms since epoch), 0 if unknown.
+         */
+        public long getTimestamp() {
+            return store.getTimestamp(index);
         }
         
         public String getFlightRecordEntry() {
             return "{" + getActionString() + "," 
-                    + speed + "," 
-                    + duration + "}";
+                    + getSpeed() + "," 
+                    + getDuration() + "}";
         }
         
         @Override
         public String toString() {
             return "Movement\tAction(" + getActionString() 
-                    + ")\tSpeed(" + speed + ")\tDuration(" + duration + ")";
+                    + ")\tSpeed(" + getSpeed() + ")\tDuration(" + getDuration() + ")";
         }
         
         public String getActionString() {
+            Action action = getAction();
             if (action == Action.FORWARD) {
                 return "FORWARD";
             } else if (action == Action.BACKWARD) {
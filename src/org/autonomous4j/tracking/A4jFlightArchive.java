@@ -0,0 +1,295 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Mark A. Heckler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.autonomous4j.tracking;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A4jFlightArchive keeps a long history of flights in one directory as a 
+ * series of rolling A4jFlightLog segments. Each segment holds up to a fixed 
+ * number of movements and is named for the number of its first movement; 
+ * movement numbers keep counting up across segments and flights.
+ * 
+ * The archive keeps a sparse index in memory (first movement number and 
+ * first timestamp of each segment), so finding a movement by number or time 
+ * means picking a segment from the index and then seeking (or binary 
+ * searching) within that one mapped file. Nothing else is read.
+ * 
+ * When the segments on disk exceed the size budget, the oldest are deleted. 
+ * The segment being written is never deleted.
+ * 
+ * One thread writes (via A4jBlackBox); any thread may read.
+ * 
+ * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
+ */
+public final class A4jFlightArchive {
+    public static final int DEFAULT_SEGMENT_MOVEMENTS = 4096;
+    public static final long DEFAULT_SIZE_BUDGET = 64L * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".afb";
+
+    private final Path directory;
+    private final int segmentMovements;
+    private final long sizeBudget;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private A4jFlightLog current = null;
+    private long nextMovement = 0;
+
+    private A4jFlightArchive(Path directory, int segmentMovements, long sizeBudget) {
+        this.directory = directory;
+        this.segmentMovements = segmentMovements;
+        this.sizeBudget = sizeBudget;
+    }
+
+    /**
+     * Open (or create) an archive.
+     * @param directory Where the segments live.
+     * @return Archive; new movements go into a new segment.
+     * @throws IOException If the directory can't be created or listed.
+     */
+    public static A4jFlightArchive open(Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_MOVEMENTS, DEFAULT_SIZE_BUDGET);
+    }
+
+    /**
+     * @param segmentMovements Movements per segment.
+     * @param sizeBudget Most bytes the segments may take up on disk.
+     */
+    public static A4jFlightArchive open(Path directory, int segmentMovements, 
+            long sizeBudget) throws IOException {
+        A4jFlightArchive archive = new A4jFlightArchive(directory, 
+                Math.max(1, segmentMovements), sizeBudget);
+        Files.createDirectories(directory);
+        archive.index();
+        return archive;
+    }
+
+    /*
+     Build the sparse index from the segments already on disk.
+     */
+    private void index() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = 
+                Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        // Zero-padded movement numbers sort by name
+        files.sort(null);
+        for (Path file : files) {
+            try (A4jFlightLog.Reader reader = A4jFlightLog.read(file)) {
+                if (reader.size() == 0) {
+                    Files.delete(file);
+                    continue;
+                }
+                reader.next();
+                Segment segment = new Segment(file, firstMovement(file), 
+                        reader.getTimestamp());
+                segment.bytes = Files.size(file);
+                segments.add(segment);
+                nextMovement = segment.firstMovement + reader.size();
+            } catch (IOException | NumberFormatException ex) {
+                Logger.getLogger(A4jFlightArchive.class.getName()).log(Level.SEVERE, 
+                        "Skipping " + file, ex);
+            }
+        }
+    }
+
+    private static long firstMovement(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), 
+                name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * The segment the next movement goes into, starting a new one (and 
+     * retiring the full one) if need be.
+     * @param timestamp Time of the movement about to be appended.
+     * @return Segment to append to.
+     * @throws IOException If a new segment can't be created.
+     */
+    A4jFlightLog writable(long timestamp) throws IOException {
+        if (current != null && current.size() < segmentMovements) {
+            return current;
+        }
+        if (current != null) {
+            nextMovement += current.size();
+            retire();
+        }
+        Path file = directory.resolve(String.format("%s%019d%s", 
+                SEGMENT_PREFIX, nextMovement, SEGMENT_SUFFIX));
+        current = A4jFlightLog.create(file, segmentMovements);
+        segments.add(new Segment(file, nextMovement, timestamp));
+        return current;
+    }
+
+    /*
+     Close the segment being written and bring the archive within budget.
+     */
+    private void retire() throws IOException {
+        current.close();
+        current = null;
+        Segment last = segments.get(segments.size() - 1);
+        last.bytes = Files.size(last.file);
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.bytes;
+        }
+        while (total > sizeBudget && segments.size() > 1) {
+            Segment oldest = segments.remove(0);
+            total -= oldest.bytes;
+            Files.deleteIfExists(oldest.file);
+        }
+    }
+
+    /**
+     * Finish the segment being written. Its movements stay in the archive.
+     * @throws IOException If the segment can't be closed.
+     */
+    public void close() throws IOException {
+        if (current != null) {
+            nextMovement += current.size();
+            retire();
+        }
+    }
+
+    /**
+     * @return Number of the oldest movement still in the archive.
+     */
+    public long getFirstMovement() {
+        return segments.isEmpty() ? nextMovement : segments.get(0).firstMovement;
+    }
+
+    /**
+     * @return Number the next movement recorded will get.
+     */
+    public long getNextMovement() {
+        A4jFlightLog log = current;
+        return nextMovement + (log == null ? 0 : log.size());
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Find the movement in progress at a given time.
+     * @param timestamp Time, in ms since epoch.
+     * @return Number of the last movement that started at or before then, 
+     * or of the oldest movement if they all started later.
+     * @throws IOException If the segment can't be read.
+     */
+    public long find(long timestamp) throws IOException {
+        List<Segment> index = new ArrayList<>(segments);
+        int low = 0;
+        int high = index.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (index.get(mid).firstTimestamp <= timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (high < 0) {
+            return getFirstMovement();
+        }
+        Segment segment = index.get(high);
+        try (A4jFlightLog.Reader reader = A4jFlightLog.read(segment.file)) {
+            return segment.firstMovement + Math.max(0, reader.find(timestamp));
+        }
+    }
+
+    /**
+     * Read movements starting at a given time, e.g. to replay part of a 
+     * flight.
+     * @param timestamp Time, in ms since epoch.
+     * @param max Most movements to read.
+     * @return Movements in recorded order.
+     * @throws IOException If a segment can't be read.
+     */
+    public A4jFlightRecording loadFrom(long timestamp, int max) throws IOException {
+        return load(find(timestamp), max);
+    }
+
+    /**
+     * Read movements starting at a given movement number.
+     * @param fromMovement Number of the first movement wanted.
+     * @param max Most movements to read.
+     * @return Movements in recorded order (fewer than max at the end of the 
+     * archive; starting later if fromMovement has already been deleted).
+     * @throws IOException If a segment can't be read.
+     */
+    public A4jFlightRecording load(long fromMovement, int max) throws IOException {
+        List<Segment> index = new ArrayList<>(segments);
+        A4jFlightRecording flight = new A4jFlightRecording(
+                Math.max(1, Math.min(max, segmentMovements)));
+        // Skip the segments that end before fromMovement
+        int first = 0;
+        while (first + 1 < index.size() && index.get(first + 1).firstMovement <= fromMovement) {
+            first++;
+        }
+        for (int i = first; i < index.size() && flight.size() < max; i++) {
+            Segment segment = index.get(i);
+            try (A4jFlightLog.Reader reader = A4jFlightLog.read(segment.file)) {
+                long skip = fromMovement - segment.firstMovement;
+                if (skip >= reader.size()) {
+                    continue;
+                }
+                if (skip > 0) {
+                    reader.seek((int) skip - 1);
+                }
+                while (flight.size() < max && reader.next()) {
+                    flight.add(reader.getAction(), reader.getSpeed(), 
+                            reader.getDuration(), reader.getTimestamp());
+                }
+            } catch (NoSuchFileException ex) {
+                // Deleted to stay within budget since we looked; carry on
+            }
+        }
+        return flight;
+    }
+
+    private static class Segment {
+        private final Path file;
+        private final long firstMovement;
+        private final long firstTimestamp;
+        // On-disk size once the segment is closed
+        private long bytes = 0;
+
+        private Segment(Path file, long firstMovement, long firstTimestamp) {
+            this.file = file;
+            this.firstMovement = firstMovement;
+            this.firstTimestamp = firstTimestamp;
+        }
+    }
+}
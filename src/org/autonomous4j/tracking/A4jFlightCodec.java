@@ -0,0 +1,291 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Mark A. Heckler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.autonomous4j.tracking;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.autonomous4j.tracking.A4jBlackBox.Action;
+
+/**
+ * A4jFlightCodec is the compact flight format (.afc) for keeping and 
+ * moving finished flights: a few bytes per movement instead of the 24 a 
+ * fixed A4jFlightLog record takes.
+ * 
+ * Header: magic "A4JC", version, flags, then the action dictionary (the 
+ * Action names, in code order, empty for a retired code), so a decoder maps 
+ * codes by name rather than trusting its own Action codes. Each movement is 
+ * then its action code byte (Action.getCode()) followed by varints: 
+ * timestamp delta from the previous movement, speed and duration (signed 
+ * values zigzag-encoded). An END byte closes the flight. With COMPRESSED 
+ * set, everything after the header goes through Deflater as well.
+ * 
+ * The Decoder streams: it holds one movement at a time, or hands them out 
+ * in chunks sized for processRecordedMovements() (see 
+ * A4jBlackBox.replayFlight()).
+ * 
+ * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
+ */
+public final class A4jFlightCodec {
+    static final int MAGIC = 0x41344A43;    // "A4JC"
+    static final byte VERSION = 1;
+    public static final int COMPRESSED = 1;
+    private static final int END = 0xFF;
+    // Action names indexed by code
+    private static final String[] DICTIONARY = dictionary();
+
+    private A4jFlightCodec() {
+    }
+
+    private static String[] dictionary() {
+        int size = 0;
+        for (Action action : Action.values()) {
+            size = Math.max(size, action.getCode() + 1);
+        }
+        String[] names = new String[size];
+        Arrays.fill(names, "");
+        for (Action action : Action.values()) {
+            names[action.getCode()] = action.name();
+        }
+        return names;
+    }
+
+    /**
+     * Write a binary flight log (e.g. LastFlight.afb) in the compact format.
+     * @param log A4jFlightLog file.
+     * @param target Compact file to create or replace.
+     * @param compress Whether to deflate the movements too.
+     * @throws IOException If either file can't be used.
+     */
+    public static void compact(Path log, Path target, boolean compress) throws IOException {
+        try (A4jFlightLog.Reader reader = A4jFlightLog.read(log);
+                Encoder encoder = new Encoder(Files.newOutputStream(target), compress)) {
+            while (reader.next()) {
+                encoder.write(reader.getAction(), reader.getSpeed(), 
+                        reader.getDuration(), reader.getTimestamp());
+            }
+        }
+    }
+
+    /**
+     * @return Whether the file starts like a compact flight.
+     */
+    public static boolean isCompact(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException ex) {
+            return false;
+        }
+    }
+
+    public static Decoder read(Path file) throws IOException {
+        return new Decoder(Files.newInputStream(file));
+    }
+
+    /**
+     * Writes movements, in order, to a stream. close() ends the flight.
+     */
+    public static final class Encoder implements Closeable {
+        private final DataOutputStream header;
+        private final OutputStream body;
+        private long lastTimestamp = 0;
+
+        public Encoder(OutputStream out, boolean compress) throws IOException {
+            header = new DataOutputStream(new BufferedOutputStream(out));
+            header.writeInt(MAGIC);
+            header.writeByte(VERSION);
+            header.writeByte(compress ? COMPRESSED : 0);
+            header.writeByte(DICTIONARY.length);
+            for (String name : DICTIONARY) {
+                header.writeUTF(name);
+            }
+            body = compress 
+                    ? new DeflaterOutputStream(header, new Deflater(Deflater.BEST_COMPRESSION)) 
+                    : header;
+        }
+
+        public void write(Action action, int speed, long duration, long timestamp) throws IOException {
+            body.write(action.getCode());
+            writeVarLong(zigzag(timestamp - lastTimestamp));
+            writeVarLong(zigzag(speed));
+            writeVarLong(zigzag(duration));
+            lastTimestamp = timestamp;
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                body.write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            body.write((int) value);
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.write(END);
+            // Finishes the deflater (if any) and closes the stream
+            body.close();
+        }
+    }
+
+    /**
+     * Cursor over a compact flight: call next() before reading each 
+     * movement's fields, or read() to take several at once.
+     */
+    public static final class Decoder implements Closeable {
+        private final InputStream body;
+        private final Action[] dictionary;
+        private Action action;
+        private int speed;
+        private long duration;
+        private long timestamp = 0;
+        private boolean ended = false;
+
+        public Decoder(InputStream in) throws IOException {
+            DataInputStream header = new DataInputStream(new BufferedInputStream(in));
+            try {
+                if (header.readInt() != MAGIC) {
+                    throw new IOException("Not a compact flight.");
+                }
+                if (header.readByte() != VERSION) {
+                    throw new IOException("Unsupported compact flight version.");
+                }
+                boolean compressed = (header.readByte() & COMPRESSED) != 0;
+                dictionary = new Action[header.readUnsignedByte()];
+                for (int i = 0; i < dictionary.length; i++) {
+                    dictionary[i] = action(header.readUTF());
+                }
+                body = compressed ? new InflaterInputStream(header) : header;
+            } catch (IOException ex) {
+                header.close();
+                throw ex;
+            }
+        }
+
+        private static Action action(String name) throws IOException {
+            if (name.isEmpty()) {
+                return null;
+            }
+            try {
+                return Action.valueOf(name);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Unknown action " + name, ex);
+            }
+        }
+
+        /**
+         * Move to the next movement.
+         * @return False at the end of the flight.
+         * @throws IOException If the stream is cut off mid-movement or corrupt.
+         */
+        public boolean next() throws IOException {
+            if (ended) {
+                return false;
+            }
+            int code = body.read();
+            // A flight cut off between movements (no END) still reads
+            if (code == END || code < 0) {
+                ended = true;
+                return false;
+            }
+            if (code >= dictionary.length || dictionary[code] == null) {
+                throw new IOException("Unknown action code " + code);
+            }
+            action = dictionary[code];
+            timestamp += unzigzag(readVarLong());
+            speed = (int) unzigzag(readVarLong());
+            duration = unzigzag(readVarLong());
+            return true;
+        }
+
+        /**
+         * Decode up to max movements, e.g. to replay a long flight a chunk 
+         * at a time.
+         * @return Movements read; empty at the end of the flight.
+         */
+        public A4jFlightRecording read(int max) throws IOException {
+            A4jFlightRecording chunk = new A4jFlightRecording(Math.max(1, Math.min(max, 1024)));
+            while (chunk.size() < max && next()) {
+                chunk.add(action, speed, duration, timestamp);
+            }
+            return chunk;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = body.read();
+                if (b < 0) {
+                    throw new EOFException("Flight ends mid-movement.");
+                }
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint.");
+        }
+
+        private static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        public int getSpeed() {
+            return speed;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Mark A. Heckler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.autonomous4j.tracking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.autonomous4j.tracking.A4jBlackBox.Action;
+
+/**
+ * A4jFlightLog is the binary flight recorder format: a 16-byte header 
+ * followed by fixed-width 24-byte records, written through a memory-mapped 
+ * file so appending a movement (or setting its duration) is a store into 
+ * memory rather than a write call.
+ * 
+ * Header: magic "A4JF", version, record size, record count, reserved. 
+ * Record: timestamp (ms since epoch), duration (ms), speed, action code 
+ * (Action.getCode(), stable across releases), 3 bytes padding. The count 
+ * is updated after each record is complete, so a reader never sees a 
+ * half-written entry. The mapping grows by doubling; close() trims the 
+ * file to the records actually written.
+ * 
+ * One thread appends; force() may be called from another (e.g. a 
+ * background flusher) and only touches storage if something changed.
+ * 
+ * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
+ */
+public final class A4jFlightLog implements Closeable {
+    static final int MAGIC = 0x41344A46;    // "A4JF"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 24;
+    private static final int COUNT_OFFSET = 8;
+    private static final int DURATION_OFFSET = 8;
+    private static final int SPEED_OFFSET = 16;
+    private static final int ACTION_OFFSET = 20;
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final FileChannel channel;
+    private volatile MappedByteBuffer map;
+    private int capacity;
+    private int count = 0;
+    // Appends and duration updates so far, and as of the last force()
+    private volatile int changes = 0;
+    private int changesForced = 0;
+
+    private A4jFlightLog(FileChannel channel, int capacity) throws IOException {
+        this.channel = channel;
+        this.capacity = capacity;
+        map(capacity);
+        map.putInt(0, MAGIC)
+                .putShort(4, VERSION)
+                .putShort(6, (short) RECORD_SIZE)
+                .putInt(COUNT_OFFSET, 0)
+                .putInt(12, 0);
+    }
+
+    /**
+     * Create (or replace) a flight log.
+     * @param file Log file.
+     * @return Log ready for appending.
+     * @throws IOException If the file can't be created or mapped.
+     */
+    public static A4jFlightLog create(Path file) throws IOException {
+        return create(file, DEFAULT_CAPACITY);
+    }
+
+    public static A4jFlightLog create(Path file, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, 
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, 
+                StandardOpenOption.WRITE);
+        return new A4jFlightLog(channel, Math.max(1, capacity));
+    }
+
+    private void map(int records) throws IOException {
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, 
+                HEADER_SIZE + (long) records * RECORD_SIZE);
+        map.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Append a movement.
+     * @return Index of the new record.
+     * @throws IOException If the mapping had to grow and couldn't.
+     */
+    public int append(Action action, int speed, long duration, long timestamp) throws IOException {
+        if (count == capacity) {
+            capacity *= 2;
+            map(capacity);
+        }
+        int pos = HEADER_SIZE + count * RECORD_SIZE;
+        map.putLong(pos, timestamp)
+                .putLong(pos + DURATION_OFFSET, duration)
+                .putInt(pos + SPEED_OFFSET, speed)
+                .put(pos + ACTION_OFFSET, action.getCode());
+        // Publish the record only once it is complete
+        map.putInt(COUNT_OFFSET, ++count);
+        changes++;
+        return count - 1;
+    }
+
+    public void setDuration(int index, long duration) {
+        map.putLong(HEADER_SIZE + index * RECORD_SIZE + DURATION_OFFSET, duration);
+        changes++;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Write dirty pages to the storage device, if there are any.
+     * @return Number of changes (appends, duration updates) written.
+     */
+    public synchronized int force() {
+        int current = changes;
+        if (current == changesForced || !channel.isOpen()) {
+            return 0;
+        }
+        map.force();
+        int written = current - changesForced;
+        changesForced = current;
+        return written;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            map.force();
+            channel.truncate(HEADER_SIZE + (long) count * RECORD_SIZE);
+            channel.close();
+        }
+    }
+
+    /**
+     * Open a flight log for reading.
+     * @param file Log file written by A4jFlightLog.
+     * @return Reader positioned before the first record.
+     * @throws IOException If the file can't be read or isn't a flight log.
+     */
+    public static Reader read(Path file) throws IOException {
+        return new Reader(file);
+    }
+
+    /**
+     * Cursor over the records of a flight log: call next() before reading 
+     * each record's fields.
+     */
+    public static final class Reader implements Closeable {
+        private final FileChannel channel;
+        private final MappedByteBuffer map;
+        private final int count;
+        private int index = -1;
+
+        private Reader(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.limit() < HEADER_SIZE || map.getInt(0) != MAGIC) {
+                channel.close();
+                throw new IOException(file + " is not a flight log.");
+            }
+            // Trust the header, but never read past the end of the file
+            count = Math.min(map.getInt(COUNT_OFFSET), 
+                    (map.limit() - HEADER_SIZE) / RECORD_SIZE);
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public boolean next() {
+            if (index + 1 < count) {
+                index++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Position on the given record (next() then moves past it).
+         * @param record Record index, 0-based.
+         */
+        public void seek(int record) {
+            if (record < 0 || record >= count) {
+                throw new IndexOutOfBoundsException("Record " + record + " of " + count);
+            }
+            index = record;
+        }
+
+        /**
+         * Find the record in progress at a given time: the last one that 
+         * started at or before it. Records are in time order, so this is a 
+         * binary search over the mapped file rather than a scan.
+         * @param timestamp Time, in ms since epoch.
+         * @return Record index, or -1 if every record started later.
+         */
+        public int find(long timestamp) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (map.getLong(HEADER_SIZE + mid * RECORD_SIZE) <= timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+
+        private int position() {
+            return HEADER_SIZE + index * RECORD_SIZE;
+        }
+
+        public long getTimestamp() {
+            return map.getLong(position());
+        }
+
+        public long getDuration() {
+            return map.getLong(position() + DURATION_OFFSET);
+        }
+
+        public int getSpeed() {
+            return map.getInt(position() + SPEED_OFFSET);
+        }
+
+        /**
+         * @return Action of the current record.
+         * @throws IllegalStateException If the record's action code is 
+         * unknown (e.g. a log from a newer release).
+         */
+        public Action getAction() {
+            byte code = map.get(position() + ACTION_OFFSET);
+            Action action = Action.fromCode(code);
+            if (action == null) {
+                throw new IllegalStateException("Unknown action code " + code 
+                        + " in record " + index + ".");
+            }
+            return action;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
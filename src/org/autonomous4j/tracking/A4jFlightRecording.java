@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Mark A. Heckler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.autonomous4j.tracking;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+import org.autonomous4j.tracking.A4jBlackBox.Action;
+import org.autonomous4j.tracking.A4jBlackBox.Movement;
+
+/**
+ * A4jFlightRecording keeps a flight column by column in growable primitive 
+ * arrays (action, speed, duration, timestamp) instead of one object per 
+ * movement: about 21 bytes an entry, and scans over one column (e.g. 
+ * computing the way home) run through contiguous memory.
+ * 
+ * As a List it hands out Movement views onto its rows, created on demand; 
+ * changing a view changes the recording.
+ * 
+ * The net displacement of the whole recording (speed * duration / 100 per 
+ * movement: forward/backward on x, right/left on y, up/down on z) is kept 
+ * up to date as rows are added or changed, so it costs nothing to query.
+ * 
+ * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
+ */
+public final class A4jFlightRecording extends AbstractList<Movement> implements RandomAccess {
+    public static final int DEFAULT_CAPACITY = 64;
+    private static final Action[] ACTIONS = Action.values();
+
+    private byte[] actions;
+    private int[] speeds;
+    private long[] durations;
+    private long[] timestamps;
+    private int size = 0;
+    private volatile long xDisplacement = 0;
+    private volatile long yDisplacement = 0;
+    private volatile long zDisplacement = 0;
+
+    public A4jFlightRecording() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public A4jFlightRecording(int capacity) {
+        capacity = Math.max(1, capacity);
+        actions = new byte[capacity];
+        speeds = new int[capacity];
+        durations = new long[capacity];
+        timestamps = new long[capacity];
+    }
+
+    /**
+     * Append a movement.
+     * @return Index of the new row.
+     */
+    public int add(Action action, int speed, long duration, long timestamp) {
+        if (size == actions.length) {
+            int capacity = actions.length * 2;
+            actions = Arrays.copyOf(actions, capacity);
+            speeds = Arrays.copyOf(speeds, capacity);
+            durations = Arrays.copyOf(durations, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+        }
+        actions[size] = (byte) action.ordinal();
+        speeds[size] = speed;
+        durations[size] = duration;
+        timestamps[size] = timestamp;
+        displace(size, 1);
+        modCount++;
+        return size++;
+    }
+
+    @Override
+    public boolean add(Movement movement) {
+        add(movement.getAction(), movement.getSpeed(), movement.getDuration(), 
+                movement.getTimestamp());
+        return true;
+    }
+
+    @Override
+    public Movement get(int index) {
+        return new Movement(this, checkIndex(index));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        xDisplacement = yDisplacement = zDisplacement = 0;
+        modCount++;
+    }
+
+    /*
+     Add (sign 1) or take back (sign -1) one row's share of the displacement.
+     */
+    private void displace(int index, int sign) {
+        long distance = sign * (speeds[index] * durations[index] / 100);
+        switch (ACTIONS[actions[index]]) {
+            case FORWARD:
+                xDisplacement += distance;
+                break;
+            case BACKWARD:
+                xDisplacement -= distance;
+                break;
+            case RIGHT:
+                yDisplacement += distance;
+                break;
+            case LEFT:
+                yDisplacement -= distance;
+                break;
+            case UP:
+                zDisplacement += distance;
+                break;
+            case DOWN:
+                zDisplacement -= distance;
+                break;
+            default:
+                // No measured adjustments for takeoff, hover, land, or lights.
+                break;
+        }
+    }
+
+    public long getDisplacementX() {
+        return xDisplacement;
+    }
+
+    public long getDisplacementY() {
+        return yDisplacement;
+    }
+
+    public long getDisplacementZ() {
+        return zDisplacement;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return index;
+    }
+
+    /* Column access - begin */
+    public Action getAction(int index) {
+        return ACTIONS[actions[checkIndex(index)]];
+    }
+
+    public int getSpeed(int index) {
+        return speeds[checkIndex(index)];
+    }
+
+    public long getDuration(int index) {
+        return durations[checkIndex(index)];
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[checkIndex(index)];
+    }
+
+    void setAction(int index, Action action) {
+        displace(checkIndex(index), -1);
+        actions[index] = (byte) action.ordinal();
+        displace(index, 1);
+    }
+
+    void setSpeed(int index, int speed) {
+        displace(checkIndex(index), -1);
+        speeds[index] = speed;
+        displace(index, 1);
+    }
+
+    public void setDuration(int index, long duration) {
+        displace(checkIndex(index), -1);
+        durations[index] = duration;
+        displace(index, 1);
+    }
+    /* Column access - end */
+}
@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Mark A. Heckler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.autonomous4j.tracking;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.autonomous4j.tracking.A4jBlackBox.Action;
+
+/**
+ * A4jRecorderStats counts what the flight recorder spends on durability: 
+ * how often the in-progress log was flushed to storage, how many changes 
+ * (new records or duration updates) each flush carried and how long the 
+ * flushes took. It also counts MQTT messages published or dropped and how 
+ * long each spent between being queued and reaching the broker. Finally, 
+ * per action, it keeps the scheduling jitter: how far each movement's 
+ * measured duration was from the one requested (positive when it ran long).
+ * 
+ * @author Mark Heckler (mark.heckler@gmail.com, @mkheck)
+ */
+public class A4jRecorderStats {
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong changesFlushed = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong publishesDropped = new AtomicLong();
+    private final AtomicLong totalPublishNanos = new AtomicLong();
+    private final AtomicLong maxPublishNanos = new AtomicLong();
+    private final AtomicLongArray jitterCounts = new AtomicLongArray(Action.values().length);
+    private final AtomicLongArray totalJitterNanos = new AtomicLongArray(Action.values().length);
+    private final AtomicLongArray totalAbsJitterNanos = new AtomicLongArray(Action.values().length);
+    private final AtomicLong maxAbsJitterNanos = new AtomicLong();
+
+    void flushed(long latencyNanos, int changes) {
+        flushes.incrementAndGet();
+        changesFlushed.addAndGet(changes);
+        totalFlushNanos.addAndGet(latencyNanos);
+        updateMax(maxFlushNanos, latencyNanos);
+    }
+
+    void published(long latencyNanos) {
+        published.incrementAndGet();
+        totalPublishNanos.addAndGet(latencyNanos);
+        updateMax(maxPublishNanos, latencyNanos);
+    }
+
+    void publishDropped() {
+        publishesDropped.incrementAndGet();
+    }
+
+    void scheduled(Action action, long jitterNanos) {
+        int i = action.ordinal();
+        jitterCounts.incrementAndGet(i);
+        totalJitterNanos.addAndGet(i, jitterNanos);
+        totalAbsJitterNanos.addAndGet(i, Math.abs(jitterNanos));
+        updateMax(maxAbsJitterNanos, Math.abs(jitterNanos));
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Lost the race to another update; re-check against the new max
+        }
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getChangesFlushed() {
+        return changesFlushed.get();
+    }
+
+    public double getChangesPerFlush() {
+        long count = flushes.get();
+        return count == 0 ? 0 : (double) changesFlushed.get() / count;
+    }
+
+    public double getMeanFlushMillis() {
+        long count = flushes.get();
+        return count == 0 ? 0 : totalFlushNanos.get() / (count * 1e6);
+    }
+
+    public double getMaxFlushMillis() {
+        return maxFlushNanos.get() / 1e6;
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public long getPublishesDropped() {
+        return publishesDropped.get();
+    }
+
+    public double getMeanPublishMillis() {
+        long count = published.get();
+        return count == 0 ? 0 : totalPublishNanos.get() / (count * 1e6);
+    }
+
+    public double getMaxPublishMillis() {
+        return maxPublishNanos.get() / 1e6;
+    }
+
+    public long getTimedMovements() {
+        long count = 0;
+        for (int i = 0; i < jitterCounts.length(); i++) {
+            count += jitterCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return Mean of |measured - requested| over all timed movements.
+     */
+    public double getMeanJitterMillis() {
+        long count = 0;
+        long total = 0;
+        for (int i = 0; i < jitterCounts.length(); i++) {
+            count += jitterCounts.get(i);
+            total += totalAbsJitterNanos.get(i);
+        }
+        return count == 0 ? 0 : total / (count * 1e6);
+    }
+
+    public double getMeanJitterMillis(Action action) {
+        long count = jitterCounts.get(action.ordinal());
+        return count == 0 ? 0 : totalAbsJitterNanos.get(action.ordinal()) / (count * 1e6);
+    }
+
+    /**
+     * @return Mean of measured - requested: how late (or, if negative, 
+     * early) this action's movements end.
+     */
+    public double getMeanLatenessMillis(Action action) {
+        long count = jitterCounts.get(action.ordinal());
+        return count == 0 ? 0 : totalJitterNanos.get(action.ordinal()) / (count * 1e6);
+    }
+
+    public double getMaxJitterMillis() {
+        return maxAbsJitterNanos.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return "Recorder\tFlushes(" + getFlushes() + ")\tChangesPerFlush(" 
+                + String.format("%.1f", getChangesPerFlush()) + ")\tMeanFlush(" 
+                + String.format("%.2f", getMeanFlushMillis()) + "ms)\tMaxFlush(" 
+                + String.format("%.2f", getMaxFlushMillis()) + "ms)\tPublished(" 
+                + getPublished() + ")\tDropped(" + getPublishesDropped() 
+                + ")\tMeanPublish(" + String.format("%.2f", getMeanPublishMillis()) 
+                + "ms)\tMaxPublish(" + String.format("%.2f", getMaxPublishMillis()) 
+                + "ms)\tMeanJitter(" + String.format("%.2f", getMeanJitterMillis()) 
+                + "ms)\tMaxJitter(" + String.format("%.2f", getMaxJitterMillis()) + "ms)";
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.autonomous4j.physical;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.autonomous4j.interfaces.A4jSubscriber;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Publishes through A4jEventBus and checks what subscribers receive.
+ *
+ * @author mark
+ */
+public class A4jEventBusTest {
+    A4jEventBus instance;
+    
+    public A4jEventBusTest() {
+    }
+    
+    @Before
+    public void setUp() {
+    }
+    
+    @After
+    public void tearDown() {
+        if (instance != null) {
+            instance.unsubscribeAll();
+        }
+    }
+
+    @Test
+    public void testCapacity() {
+        System.out.println("capacity");
+        assertEquals(A4jEventBus.DEFAULT_CAPACITY, new A4jEventBus().getCapacity());
+        assertEquals(128, new A4jEventBus(100).getCapacity());
+        assertEquals(2, new A4jEventBus(1).getCapacity());
+    }
+
+    @Test
+    public void testDeliveryInOrder() throws Exception {
+        System.out.println("delivery in order");
+        instance = new A4jEventBus(128);
+        Collector collector = new Collector(100);
+        instance.subscribe(collector);
+        for (int i = 0; i < 100; i++) {
+            instance.publish("e" + i);
+        }
+        assertTrue(collector.await());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("e" + i, collector.events.get(i));
+        }
+        assertEquals(0, instance.getDropped());
+    }
+
+    @Test
+    public void testMultipleProducers() throws Exception {
+        System.out.println("multiple producers");
+        final int producers = 4;
+        final int perProducer = 1000;
+        instance = new A4jEventBus(producers * perProducer);
+        Collector collector = new Collector(producers * perProducer);
+        instance.subscribe(collector);
+        
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    instance.publish(id + ":" + i);
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertTrue(collector.await());
+        assertEquals(producers * perProducer, instance.getPublished());
+        // Each producer's events arrive complete and in the order published
+        int[] next = new int[producers];
+        for (String event : collector.events) {
+            int sep = event.indexOf(':');
+            int id = Integer.parseInt(event.substring(0, sep));
+            assertEquals(next[id]++, Integer.parseInt(event.substring(sep + 1)));
+        }
+        for (int p = 0; p < producers; p++) {
+            assertEquals(perProducer, next[p]);
+        }
+    }
+
+    @Test
+    public void testSlowSubscriberSkipsAhead() throws Exception {
+        System.out.println("slow subscriber skips ahead");
+        instance = new A4jEventBus(4);
+        CountDownLatch release = new CountDownLatch(1);
+        Collector collector = new Collector(5) {
+            @Override
+            public void receive(String event) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                super.receive(event);
+            }
+        };
+        instance.subscribe(collector);
+        instance.publish("e0");
+        Thread.sleep(50);   // Subscriber is now stuck on e0
+        for (int i = 1; i < 20; i++) {
+            instance.publish("e" + i);
+        }
+        release.countDown();
+        
+        // e0, then the last full ring (e16..e19); e1..e15 are dropped
+        assertTrue(collector.await());
+        assertEquals("e0", collector.events.get(0));
+        assertEquals("e16", collector.events.get(1));
+        assertEquals("e19", collector.events.get(4));
+        assertEquals(15, instance.getDropped());
+    }
+
+    @Test
+    public void testUnsubscribeAll() {
+        System.out.println("unsubscribe all");
+        instance = new A4jEventBus();
+        Collector collector = new Collector(1);
+        instance.subscribe(collector);
+        assertEquals(1, instance.countSubscribers());
+        assertEquals(collector, instance.getSubscribers().get(0));
+        instance.unsubscribeAll();
+        assertEquals(0, instance.countSubscribers());
+    }
+
+    private static class Collector implements A4jSubscriber {
+        final List<String> events = new CopyOnWriteArrayList<>();
+        final CountDownLatch done;
+
+        Collector(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void receive(String event) {
+            events.add(event);
+            done.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return done.await(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.autonomous4j.physical;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Encodes commands with A4jFrameCodec and decodes the frames back (echoes 
+ * use the same layout).
+ *
+ * @author mark
+ */
+public class A4jFrameCodecTest implements A4jResponseParser.Handler {
+    A4jFrameCodec instance;
+    List<String> echoes;
+    List<String> passthrough;
+    
+    public A4jFrameCodecTest() {
+    }
+    
+    @Before
+    public void setUp() {
+        instance = new A4jFrameCodec(this);
+        echoes = new ArrayList<>();
+        passthrough = new ArrayList<>();
+    }
+    
+    @After
+    public void tearDown() {
+    }
+
+    @Override
+    public void echoReceived(DroneCommand command, long[] values, int valueCount, int sequence) {
+        StringBuilder sb = new StringBuilder().append(command);
+        for (int i = 0; i < valueCount; i++) {
+            sb.append(i == 0 ? " " : ",").append(values[i]);
+        }
+        echoes.add(sb.append(" #").append(sequence).toString());
+    }
+
+    @Override
+    public void passthroughReceived(ByteBuffer line) {
+        passthrough.add(StandardCharsets.US_ASCII.decode(line).toString());
+    }
+
+    private void feed(byte[] data) {
+        for (byte b : data) {
+            instance.feed(b);
+        }
+    }
+
+    private static byte[] frame(DroneCommand command, long argument, int sequence, boolean pipelined) {
+        A4jSerialCommand cmd = new A4jSerialCommand(command, argument, command.getDescription());
+        cmd.setSequence(sequence);
+        return A4jFrameCodec.encode(cmd, pipelined);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        System.out.println("round trip");
+        byte[] forward = frame(DroneCommand.FORWARD, 20, 7, true);
+        // Sync, opcode, length, sequence, argument, checksum
+        assertEquals(6, forward.length);
+        assertEquals(A4jFrameCodec.SYNC, forward[0]);
+        feed(forward);
+        feed(frame(DroneCommand.BACK, 20, 7, false));
+        assertEquals("FORWARD 20 #7", echoes.get(0));
+        assertEquals("BACK 20 #-1", echoes.get(1));
+    }
+
+    @Test
+    public void testVarintBoundaries() {
+        System.out.println("varint boundaries");
+        long[] arguments = {0, -1, 63, -64, 64, 8191, 1000000, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long argument : arguments) {
+            feed(frame(DroneCommand.LEFT, argument, 300, true));
+        }
+        assertEquals(arguments.length, echoes.size());
+        for (int i = 0; i < arguments.length; i++) {
+            assertEquals("LEFT " + arguments[i] + " #300", echoes.get(i));
+        }
+    }
+
+    @Test
+    public void testNoArgument() {
+        System.out.println("no argument");
+        feed(A4jFrameCodec.encode(new A4jSerialCommand(DroneCommand.PINGF, "Ping"), false));
+        assertEquals("PINGF #-1", echoes.get(0));
+    }
+
+    @Test
+    public void testChecksumMismatch() {
+        System.out.println("checksum mismatch");
+        byte[] bad = frame(DroneCommand.FORWARD, 20, 1, true);
+        bad[4] ^= 0x01;
+        feed(bad);
+        assertTrue(echoes.isEmpty());
+        // The next good frame still gets through
+        feed(frame(DroneCommand.FORWARD, 20, 2, true));
+        assertEquals("FORWARD 20 #2", echoes.get(0));
+    }
+
+    @Test
+    public void testResynchronize() {
+        System.out.println("resynchronize");
+        // A length no encoder produces is abandoned
+        feed(new byte[] {A4jFrameCodec.SYNC, 'F', (byte) 200});
+        feed(frame(DroneCommand.RIGHT, 90, 3, true));
+        assertEquals(1, echoes.size());
+        assertEquals("RIGHT 90 #3", echoes.get(0));
+    }
+
+    @Test
+    public void testTextBetweenFrames() {
+        System.out.println("text between frames");
+        feed("debug 1\r\n".getBytes(StandardCharsets.US_ASCII));
+        feed(frame(DroneCommand.STOP, 0, 4, true));
+        feed("debug 2\n".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(2, passthrough.size());
+        assertEquals("debug 1", passthrough.get(0));
+        assertEquals("debug 2", passthrough.get(1));
+        assertEquals("STOP 0 #4", echoes.get(0));
+    }
+
+    @Test
+    public void testScriptTooLong() {
+        System.out.println("script too long");
+        A4jLandScript script = new A4jLandScript();
+        for (int i = 0; i < A4jLandScript.MAX_STEPS; i++) {
+            script.forward(Long.MAX_VALUE / 2);
+        }
+        try {
+            A4jFrameCodec.encode(new A4jSerialCommand(script, "Script"), true);
+            fail("Frame length overflowed");
+        } catch (IllegalArgumentException ex) {
+            // Expected: a length that doesn't fit in one byte is refused
+        }
+    }
+}
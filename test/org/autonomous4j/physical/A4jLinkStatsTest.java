@@ -0,0 +1,80 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.autonomous4j.physical;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Feeds A4jLinkStats echo latencies and checks the histogram percentiles
+ * (upper bounds of power-of-two microsecond buckets).
+ *
+ * @author mark
+ */
+public class A4jLinkStatsTest {
+    A4jLinkStats instance;
+
+    public A4jLinkStatsTest() {
+    }
+
+    @Before
+    public void setUp() {
+        instance = new A4jLinkStats();
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    @Test
+    public void testPercentiles() {
+        System.out.println("percentiles");
+        // 1.5 ms lands in [1024, 2048) us, 100 ms in [65536, 131072) us
+        for (int i = 0; i < 90; i++) {
+            instance.echoReceived(DroneCommand.PINGF, TimeUnit.MICROSECONDS.toNanos(1500));
+        }
+        for (int i = 0; i < 10; i++) {
+            instance.echoReceived(DroneCommand.PINGF, TimeUnit.MILLISECONDS.toNanos(100));
+        }
+
+        assertEquals(2.048, instance.getLatencyPercentileMillis("PINGF", 50), 1e-9);
+        assertEquals(2.048, instance.getLatencyPercentileMillis("PINGF", 90), 1e-9);
+        assertEquals(131.072, instance.getLatencyPercentileMillis("PINGF", 91), 1e-9);
+        assertEquals(131.072, instance.getLatencyPercentileMillis("PINGF", 99), 1e-9);
+        assertEquals(100, instance.getMaxLatencyMillis(), 1e-9);
+        assertEquals(100, instance.getEchoesReceived());
+    }
+
+    @Test
+    public void testBucketEdges() {
+        System.out.println("bucket edges");
+        // Sub-microsecond echoes count as 1 us: the first bucket
+        instance.echoReceived(DroneCommand.STOP, 0);
+        assertEquals(0.002, instance.getLatencyPercentileMillis("STOP", 100), 1e-9);
+        // Exactly 2^11 us starts the next bucket up
+        instance.echoReceived(DroneCommand.LEFT, TimeUnit.MICROSECONDS.toNanos(2048));
+        assertEquals(4.096, instance.getLatencyPercentileMillis("LEFT", 100), 1e-9);
+        // Anything beyond the last bucket is kept in it
+        instance.echoReceived(DroneCommand.RIGHT, TimeUnit.DAYS.toNanos(365));
+        assertEquals((1L << 32) / 1000.0, instance.getLatencyPercentileMillis("RIGHT", 100), 1e-9);
+    }
+
+    @Test
+    public void testLatencySummary() {
+        System.out.println("latency summary");
+        // Nothing echoed: no percentile and no summary line
+        assertEquals(0, instance.getLatencyPercentileMillis("FORWARD", 50), 0);
+        assertEquals(0, instance.getLatencySummary().length);
+
+        instance.echoReceived(DroneCommand.FORWARD, TimeUnit.MILLISECONDS.toNanos(3));
+        String[] summary = instance.getLatencySummary();
+        assertEquals(1, summary.length);
+        assertTrue(summary[0], summary[0].startsWith("FORWARD: n=1 "));
+    }
+}
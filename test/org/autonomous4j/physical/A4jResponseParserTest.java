@@ -0,0 +1,130 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.autonomous4j.physical;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Feeds A4jResponseParser the way serialEvent does and checks what reaches 
+ * the handler.
+ *
+ * @author mark
+ */
+public class A4jResponseParserTest implements A4jResponseParser.Handler {
+    A4jResponseParser instance;
+    List<String> echoes;
+    List<String> passthrough;
+    
+    public A4jResponseParserTest() {
+    }
+    
+    @Before
+    public void setUp() {
+        instance = new A4jResponseParser(this);
+        echoes = new ArrayList<>();
+        passthrough = new ArrayList<>();
+    }
+    
+    @After
+    public void tearDown() {
+    }
+
+    @Override
+    public void echoReceived(DroneCommand command, long[] values, int valueCount, int sequence) {
+        StringBuilder sb = new StringBuilder().append(command);
+        for (int i = 0; i < valueCount; i++) {
+            sb.append(i == 0 ? " " : ",").append(values[i]);
+        }
+        echoes.add(sb.append(" #").append(sequence).toString());
+    }
+
+    @Override
+    public void passthroughReceived(ByteBuffer line) {
+        passthrough.add(StandardCharsets.US_ASCII.decode(line).toString());
+    }
+
+    private void feed(String data) {
+        instance.feed(data.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testEcho() {
+        System.out.println("echo");
+        feed(">F:\r\n>f:123 cm#7\r\n");
+        assertEquals(2, echoes.size());
+        assertEquals("FORWARD #-1", echoes.get(0));
+        assertEquals("PINGF 123 #7", echoes.get(1));
+        assertTrue(passthrough.isEmpty());
+    }
+
+    @Test
+    public void testSplitAcrossBursts() {
+        System.out.println("split across bursts");
+        for (String burst : new String[] {">", "f", ":1", "2", "3 c", "m#", "4", "2\r", "\n"}) {
+            feed(burst);
+            if (!burst.endsWith("\n")) {
+                assertTrue(echoes.isEmpty());
+            }
+        }
+        assertEquals("PINGF 123 #42", echoes.get(0));
+    }
+
+    @Test
+    public void testMultipleValues() {
+        System.out.println("multiple values");
+        feed(">a:10,20,-30\r\n");
+        assertEquals("PINGA 10,20,-30 #-1", echoes.get(0));
+        // Values past MAX_VALUES are ignored
+        feed(">a:1,2,3,4,5,6#9\n");
+        assertEquals("PINGA 1,2,3,4 #9", echoes.get(1));
+    }
+
+    @Test
+    public void testEchoWithoutLineEnd() {
+        System.out.println("echo without line end");
+        // A new '>' finishes the echo before it
+        feed(">F:20>B:10\n");
+        assertEquals(2, echoes.size());
+        assertEquals("FORWARD 20 #-1", echoes.get(0));
+        assertEquals("BACK 10 #-1", echoes.get(1));
+    }
+
+    @Test
+    public void testUnknownCode() {
+        System.out.println("unknown code");
+        feed(">Z:5\n");
+        assertEquals("null 5 #-1", echoes.get(0));
+    }
+
+    @Test
+    public void testPassthrough() {
+        System.out.println("passthrough");
+        feed("READY\r\n\r\n");
+        assertEquals(1, passthrough.size());
+        assertEquals("READY", passthrough.get(0));
+    }
+
+    @Test
+    public void testLongLine() {
+        System.out.println("long line");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        feed(sb + "\n>f:77\n");
+        // Cut short at the line capacity, and the parser carries on
+        assertEquals(128, passthrough.get(0).length());
+        assertEquals(sb.substring(0, 128), passthrough.get(0));
+        assertEquals("PINGF 77 #-1", echoes.get(0));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.autonomous4j.physical;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Merges queued commands with A4jSerialCommand.coalesce.
+ *
+ * @author mark
+ */
+public class A4jSerialCommandTest {
+    
+    public A4jSerialCommandTest() {
+    }
+    
+    @Before
+    public void setUp() {
+    }
+    
+    @After
+    public void tearDown() {
+    }
+
+    @Test
+    public void testCoalesceAddsMoves() {
+        System.out.println("coalesce adds moves");
+        A4jSerialCommand first = forward(20);
+        A4jSerialCommand second = forward(30);
+        A4jSerialCommand merged = A4jSerialCommand.coalesce(first, second);
+        assertNotNull(merged);
+        assertEquals(DroneCommand.FORWARD, merged.getCommand());
+        assertEquals(50, merged.getArgument());
+        assertEquals(2, merged.getOriginals().size());
+        // No timeout of its own: the deadline follows the merged distance
+        assertEquals(1234, merged.getTimeout(1234));
+    }
+
+    @Test
+    public void testCoalesceIncompatible() {
+        System.out.println("coalesce incompatible");
+        assertNull(A4jSerialCommand.coalesce(forward(20), 
+                new A4jSerialCommand(DroneCommand.BACK, 20, "Back")));
+        assertNull(A4jSerialCommand.coalesce(forward(20), 
+                new A4jSerialCommand(DroneCommand.PINGF, "Ping Forward")));
+        assertNull(A4jSerialCommand.coalesce(new A4jSerialCommand(DroneCommand.PINGF, "Ping Forward"), 
+                new A4jSerialCommand(DroneCommand.PINGF, "Ping Forward")));
+    }
+
+    @Test
+    public void testCoalesceStopBeforeMove() {
+        System.out.println("coalesce stop before move");
+        A4jSerialCommand merged = A4jSerialCommand.coalesce(
+                new A4jSerialCommand(DroneCommand.STOP, "Stop"), forward(20));
+        assertNotNull(merged);
+        assertEquals(DroneCommand.FORWARD, merged.getCommand());
+        assertEquals(20, merged.getArgument());
+        // ...but a move followed by a stop must stop
+        assertNull(A4jSerialCommand.coalesce(forward(20), 
+                new A4jSerialCommand(DroneCommand.STOP, "Stop")));
+    }
+
+    @Test
+    public void testCoalesceSkipsSentAndTimed() {
+        System.out.println("coalesce skips sent and timed");
+        A4jSerialCommand sent = forward(20);
+        sent.sent(System.nanoTime());
+        assertNull(A4jSerialCommand.coalesce(sent, forward(20)));
+        
+        A4jSerialCommand timed = forward(20);
+        timed.setTimeout(500);
+        assertNull(A4jSerialCommand.coalesce(forward(20), timed));
+    }
+
+    @Test
+    public void testCoalesceEpoch() {
+        System.out.println("coalesce epoch");
+        A4jSerialCommand first = forward(20);
+        first.setEpoch(1);
+        A4jSerialCommand second = forward(20);
+        second.setEpoch(2);
+        // If any part predates a stop, all of it does
+        assertEquals(1, A4jSerialCommand.coalesce(first, second).getEpoch());
+    }
+
+    @Test
+    public void testCoalescedCompletesOriginals() {
+        System.out.println("coalesced completes originals");
+        A4jSerialCommand first = forward(20);
+        A4jSerialCommand second = forward(20);
+        A4jSerialCommand third = forward(20);
+        A4jSerialCommand merged = A4jSerialCommand.coalesce(
+                A4jSerialCommand.coalesce(first, second), third);
+        assertEquals(60, merged.getArgument());
+        assertEquals(3, merged.getOriginals().size());
+        
+        merged.getResponse().complete(60L);
+        assertTrue(first.getResponse().isDone());
+        assertTrue(second.getResponse().isDone());
+        assertTrue(third.getResponse().isDone());
+    }
+
+    @Test
+    public void testCoalescedFailsOriginals() {
+        System.out.println("coalesced fails originals");
+        A4jSerialCommand first = forward(20);
+        A4jSerialCommand second = forward(20);
+        A4jSerialCommand merged = A4jSerialCommand.coalesce(first, second);
+        
+        merged.getResponse().completeExceptionally(new IllegalStateException());
+        assertTrue(first.getResponse().isCompletedExceptionally());
+        assertTrue(second.getResponse().isCompletedExceptionally());
+    }
+
+    private static A4jSerialCommand forward(long distance) {
+        return new A4jSerialCommand(DroneCommand.FORWARD, distance, "Forward " + distance);
+    }
+}
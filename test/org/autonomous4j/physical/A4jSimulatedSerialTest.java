@@ -0,0 +1,491 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.autonomous4j.physical;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs A4jLandController against the simulated firmware: a 400x300 cm room, 
+ * rover at (200,100) facing +y, moves and turns instant.
+ *
+ * @author mark
+ */
+public class A4jSimulatedSerialTest {
+    A4jLandController instance;
+    
+    public A4jSimulatedSerialTest() {
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        instance = new A4jLandController(new A4jSimulatedSerial()
+                .setRoom(400, 300)
+                .setStart(200, 100, 90)
+                .setSpeed(0)
+                .setTurnRate(0)
+                .setLatency(1));
+        instance.applicationProps.setProperty("serialPort", "sim");
+        instance.applicationProps.setProperty("baudRate", "115200");
+        assertTrue(instance.connect());
+    }
+    
+    @After
+    public void tearDown() {
+        instance.disconnect();
+    }
+
+    @Test
+    public void testPing() {
+        System.out.println("ping");
+        assertEquals(200, instance.pingForward());
+        assertEquals(200, instance.pingLeft());
+        assertEquals(200, instance.pingRight());
+    }
+
+    @Test
+    public void testMoveAndTurn() {
+        System.out.println("move and turn");
+        instance.forward(50);
+        assertEquals(150, instance.pingForward());
+        instance.left(90);
+        A4jSonarSweep sweep = instance.pingAll();
+        assertEquals(150, sweep.getLeft());
+        assertEquals(200, sweep.getForward());
+        assertEquals(150, sweep.getRight());
+    }
+
+    @Test
+    public void testReconnect() throws Exception {
+        System.out.println("reconnect");
+        instance.disconnect();
+        assertTrue(instance.connect());
+        assertEquals(200, instance.pingForward());
+    }
+
+    @Test
+    public void testStatsMBean() throws Exception {
+        System.out.println("stats MBean");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.autonomous4j:type=SerialLink,name=" 
+                + ObjectName.quote("sim"));
+        assertTrue(server.isRegistered(name));
+        instance.pingForward();
+        assertEquals(instance.getStats().getEchoesReceived(), 
+                server.getAttribute(name, "EchoesReceived"));
+        
+        instance.disconnect();
+        assertFalse(server.isRegistered(name));
+        assertTrue(instance.connect());
+        assertTrue(server.isRegistered(name));
+    }
+
+    @Test
+    public void testConnectWhileConnected() throws Exception {
+        System.out.println("connect while connected");
+        A4jSimulatedSerial motors = new A4jSimulatedSerial();
+        instance.disconnect();
+        instance = new A4jLandController(motors);
+        instance.applicationProps.setProperty("serialPort", "sim");
+        assertTrue(instance.connect());
+        CompletableFuture<Void> turning = instance.leftAsync(3600);
+        
+        // The first link is closed (its command released), not leaked
+        assertTrue(instance.connect());
+        assertTrue(failure(turning) instanceof CancellationException);
+        assertTrue(motors.isConnected());
+        assertEquals(200, instance.pingForward());
+        instance.disconnect();
+        assertFalse(motors.isConnected());
+    }
+
+    @Test
+    public void testSensorPortFails() throws Exception {
+        System.out.println("sensor port fails");
+        instance.disconnect();
+        A4jSimulatedSerial motors = new A4jSimulatedSerial();
+        instance = new A4jLandController(motors, new A4jSimulatedSerial() {
+            @Override
+            public boolean connect(String portName) throws Exception {
+                throw new Exception("No such port: " + portName);
+            }
+        });
+        instance.applicationProps.setProperty("serialPort", "sim");
+        instance.applicationProps.setProperty("sensorPort", "sim-sensors");
+        assertFalse(instance.connect());
+        // The motor port opened first must be closed again
+        assertFalse(motors.isConnected());
+        
+        // ...so the same controller can connect once the sensor port is back
+        instance.applicationProps.remove("sensorPort");
+        assertTrue(instance.connect());
+        assertEquals(200, instance.pingForward());
+    }
+
+    @Test
+    public void testSensorPortLatency() throws Exception {
+        System.out.println("sensor port latency");
+        instance.disconnect();
+        instance = new A4jLandController();
+        instance.applicationProps.setProperty("serialPort", "sim");
+        instance.applicationProps.setProperty("sensorPort", "sim-sensors");
+        instance.applicationProps.setProperty("simLatency", "40");
+        assertTrue(instance.connect());
+        
+        // Pings go over the sensor board's line: 40 ms each way
+        long start = System.nanoTime();
+        instance.pingForward();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 80);
+        assertTrue(instance.getStats(DroneCommand.PINGF).getMeanLatencyMillis() >= 80);
+    }
+
+    @Test
+    public void testObstacle() throws Exception {
+        System.out.println("obstacle");
+        instance.disconnect();
+        instance = new A4jLandController(new A4jSimulatedSerial()
+                .setRoom(400, 300)
+                .setStart(200, 100, 90)
+                .addObstacle(150, 160, 100, 20)
+                .setSpeed(0));
+        instance.applicationProps.setProperty("serialPort", "sim");
+        assertTrue(instance.connect());
+        assertEquals(60, instance.pingForward());
+        // Can't drive through it
+        instance.forward(100);
+        assertEquals(0, instance.pingForward());
+    }
+
+    @Test
+    public void testSlowMove() throws Exception {
+        System.out.println("slow move");
+        instance.disconnect();
+        instance = new A4jLandController(new A4jSimulatedSerial()
+                .setRoom(400, 300)
+                .setStart(200, 100, 90)
+                .setSpeed(200)
+                .setTurnRate(0));
+        instance.applicationProps.setProperty("serialPort", "sim");
+        instance.applicationProps.setProperty("commandTimeout", "200");
+        instance.applicationProps.setProperty("motionSpeed", "200");
+        assertTrue(instance.connect());
+        // Takes 0.75 s, well past the 200 ms a ping gets
+        instance.forward(150);
+        assertEquals(0, instance.getStats().getTimeouts());
+        assertEquals(50, instance.pingForward());
+    }
+
+    @Test
+    public void testLostMoveEcho() throws Exception {
+        System.out.println("lost move echo");
+        instance.disconnect();
+        instance = new A4jLandController(new A4jSimulatedSerial() {
+            private boolean lost = false;
+
+            @Override
+            public void writeBytes(byte[] data) {
+                if (!lost && data[0] == 'F') {
+                    lost = true;    // The first move never arrives
+                    return;
+                }
+                super.writeBytes(data);
+            }
+        });
+        instance.applicationProps.setProperty("serialPort", "sim");
+        instance.applicationProps.setProperty("commandTimeout", "200");
+        instance.applicationProps.setProperty("motionTimeout", "300");
+        assertTrue(instance.connect());
+        
+        // No pace configured: the move still gets motionTimeout
+        try {
+            instance.forwardAsync(50).get(5, TimeUnit.SECONDS);
+            fail("Lost move completed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+        assertEquals(1, instance.getStats().getFailures());
+        // ...and gives the pipeline slot back, so pings get through again
+        assertEquals(200, instance.pingForwardAsync().get(5, TimeUnit.SECONDS).longValue());
+    }
+
+    @Test
+    public void testCoalescedMoveDeadline() throws Exception {
+        System.out.println("coalesced move deadline");
+        instance.disconnect();
+        instance = new A4jLandController(new A4jSimulatedSerial()
+                .setRoom(400, 300)
+                .setStart(200, 20, 90)
+                .setSpeed(400)
+                .setTurnRate(0));
+        instance.applicationProps.setProperty("serialPort", "sim");
+        instance.applicationProps.setProperty("coalesce", "true");
+        instance.applicationProps.setProperty("commandTimeout", "200");
+        instance.applicationProps.setProperty("motionSpeed", "400");
+        assertTrue(instance.connect());
+        // At least the last three merge into one move of 240 cm or more, 
+        // taking over twice commandTimeout; its deadline must cover it all.
+        instance.forwardAsync(20);
+        instance.forwardAsync(80);
+        instance.forwardAsync(80);
+        instance.forwardAsync(80).get();
+        assertTrue(instance.getStats().getCommandsCoalesced() >= 2);
+        assertEquals(0, instance.getStats().getTimeouts());
+        assertEquals(20, instance.pingForward());
+    }
+
+    @Test
+    public void testStopRetriedInPlace() throws Exception {
+        System.out.println("stop retried in place");
+        instance.disconnect();
+        instance = new A4jLandController(new A4jSimulatedSerial() {
+            private boolean lost = false;
+
+            @Override
+            public void writeBytes(byte[] data) {
+                if (!lost && data[0] == 'S') {
+                    lost = true;    // The first stop never arrives
+                    return;
+                }
+                super.writeBytes(data);
+            }
+        }.setSpeed(100));
+        instance.applicationProps.setProperty("serialPort", "sim");
+        instance.applicationProps.setProperty("commandTimeout", "100");
+        instance.applicationProps.setProperty("retryBackoff", "10");
+        assertTrue(instance.connect());
+        
+        CompletableFuture<Void> stop = instance.stopAsync();
+        instance.forwardAsync(50);
+        // Queued behind the first move when the stop is retried
+        CompletableFuture<Void> queued = instance.forwardAsync(10);
+        stop.get();
+        queued.get();
+        assertEquals(1, instance.getStats().getRetries());
+        assertEquals(0, instance.getStats().getCommandsPreempted());
+    }
+
+    @Test
+    public void testStopPreemptsQueuedMove() throws Exception {
+        System.out.println("stop preempts queued move");
+        slowRover();
+        
+        CompletableFuture<Void> moving = instance.forwardAsync(100);
+        Thread.sleep(100);
+        // Queued behind the move in progress
+        CompletableFuture<Void> queued = instance.forwardAsync(10);
+        CompletableFuture<Long> ping = instance.pingForwardAsync();
+        instance.stop();
+        
+        assertTrue(failure(queued) instanceof CancellationException);
+        // Only motion is preempted by a plain stop
+        assertNull(failure(ping));
+        assertTrue(ping.get() > 100);
+        failure(moving);
+        assertEquals(1, instance.getStats().getCommandsPreempted());
+        assertEquals(1, instance.getStats().getStopsEchoed());
+        assertTrue(instance.getStats().getMaxStopLatencyMillis() > 0);
+    }
+
+    @Test
+    public void testEmergencyStop() throws Exception {
+        System.out.println("emergency stop");
+        slowRover();
+        
+        CompletableFuture<Void> moving = instance.forwardAsync(100);
+        Thread.sleep(100);
+        CompletableFuture<Long> ping = instance.pingForwardAsync();
+        CompletableFuture<Void> queued = instance.forwardAsync(10);
+        instance.emergencyStop();
+        
+        // Everything still queued goes, pings included (even one the writer 
+        // was holding until the move in progress was echoed)
+        assertTrue(failure(ping) instanceof CancellationException);
+        assertTrue(failure(queued) instanceof CancellationException);
+        failure(moving);
+        assertEquals(2, instance.getStats().getCommandsPreempted());
+        assertTrue(instance.getStats().getMaxStopLatencyMillis() > 0);
+    }
+
+    @Test
+    public void testEmergencyStopEndsMoveUntil() throws Exception {
+        System.out.println("emergency stop ends moveUntil");
+        instance.disconnect();
+        instance = new A4jLandController(new A4jSimulatedSerial()
+                .setRoom(400, 300)
+                .setStart(200, 100, 90)
+                .setSpeed(50));
+        instance.applicationProps.setProperty("serialPort", "sim");
+        instance.applicationProps.setProperty("sonarStream", "20");
+        assertTrue(instance.connect());
+        
+        // 180 cm to go at 50 cm/s: well under way when stopped
+        CompletableFuture<Long> until = instance.moveUntilAsync(20);
+        Thread.sleep(500);
+        instance.emergencyStop();
+        assertEquals(200, until.get(2, TimeUnit.SECONDS).longValue());
+        // Let the streamed samples catch up with the stopped rover
+        Thread.sleep(200);
+        long stoppedAt = instance.pingForward();
+        assertTrue(stoppedAt > 100 && stoppedAt < 200);
+        Thread.sleep(200);
+        assertEquals(stoppedAt, instance.pingForward());
+    }
+
+    @Test
+    public void testSonarStream() throws Exception {
+        System.out.println("sonar stream");
+        instance.disconnect();
+        instance = new A4jLandController(new A4jSimulatedSerial()
+                .setRoom(400, 300)
+                .setStart(200, 100, 90)
+                .setSpeed(0));
+        instance.applicationProps.setProperty("serialPort", "sim");
+        instance.applicationProps.setProperty("sonarStream", "20");
+        assertTrue(instance.connect());
+        Thread.sleep(100);
+        
+        // Fresh samples answer without a round trip
+        long sent = instance.getStats().getCommandsSent();
+        assertEquals(200, instance.pingForward());
+        assertEquals(200, instance.pingAll().getLeft());
+        assertEquals(sent, instance.getStats().getCommandsSent());
+        
+        // None is fresh enough now: ask the firmware
+        instance.setSonarMaxAge(0);
+        assertEquals(200, instance.pingForward());
+        assertEquals(sent + 1, instance.getStats().getCommandsSent());
+    }
+
+    @Test
+    public void testMoveUntilStreaming() throws Exception {
+        System.out.println("moveUntil streaming");
+        instance.disconnect();
+        instance = new A4jLandController(new A4jSimulatedSerial()
+                .setRoom(400, 300)
+                .setStart(200, 100, 90)
+                .setSpeed(50)
+                .setLatency(1));
+        instance.applicationProps.setProperty("serialPort", "sim");
+        instance.applicationProps.setProperty("sonarStream", "20");
+        assertTrue(instance.connect());
+        
+        // Drives continuously and stops on the first sample past 100 cm
+        assertEquals(200, instance.moveUntilAsync(100).get(10, TimeUnit.SECONDS).longValue());
+        Thread.sleep(100);
+        long stoppedAt = instance.pingForward();
+        assertTrue("Stopped at " + stoppedAt, stoppedAt <= 100 && stoppedAt >= 95);
+    }
+
+    @Test
+    public void testPipelined() throws Exception {
+        System.out.println("pipelined");
+        instance.disconnect();
+        instance = new A4jLandController(new A4jSimulatedSerial() {
+            private boolean lost = false;
+
+            @Override
+            public void writeBytes(byte[] data) {
+                if (!lost && data[0] == 'f') {
+                    lost = true;    // The first ping never arrives
+                    return;
+                }
+                super.writeBytes(data);
+            }
+        }.setRoom(400, 300).setStart(200, 100, 90).setLatency(1));
+        instance.applicationProps.setProperty("serialPort", "sim");
+        instance.applicationProps.setProperty("pipelined", "true");
+        instance.applicationProps.setProperty("pipelineDepth", "2");
+        instance.applicationProps.setProperty("commandTimeout", "200");
+        instance.applicationProps.setProperty("commandRetries", "0");
+        assertTrue(instance.connect());
+        
+        // The lost ping holds one slot until it times out; the other is free
+        CompletableFuture<Long> lost = instance.pingForwardAsync();
+        assertEquals(200, instance.pingLeftAsync().get(5, TimeUnit.SECONDS).longValue());
+        try {
+            lost.get(5, TimeUnit.SECONDS);
+            fail("Lost ping completed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+        assertEquals(1, instance.getStats().getFailures());
+        
+        // Giving up released its slot: more pings than slots all get through
+        CompletableFuture<Long> forward = instance.pingForwardAsync();
+        CompletableFuture<Long> left = instance.pingLeftAsync();
+        CompletableFuture<Long> right = instance.pingRightAsync();
+        assertEquals(200, forward.get(5, TimeUnit.SECONDS).longValue());
+        assertEquals(200, left.get(5, TimeUnit.SECONDS).longValue());
+        assertEquals(200, right.get(5, TimeUnit.SECONDS).longValue());
+        assertEquals(1, instance.getStats().getFailures());
+        assertEquals(0, instance.getStats().getOutstandingCommands());
+    }
+
+    @Test
+    public void testEventBusCapacity() throws Exception {
+        System.out.println("event bus capacity");
+        instance.disconnect();
+        instance = new A4jLandController(new A4jSimulatedSerial());
+        instance.addObserver(event -> { });
+        instance.applicationProps.setProperty("serialPort", "sim");
+        instance.applicationProps.setProperty("eventBusCapacity", "1024");
+        assertTrue(instance.connect());
+        // Observers added before connect() keep receiving on the resized bus
+        assertEquals(1024, instance.getEventBus().getCapacity());
+        assertEquals(1, instance.countObservers());
+    }
+
+    @Test
+    public void testScript() {
+        System.out.println("script");
+        instance.runScript(new A4jLandScript().forward(10).right(90).stop());
+        assertEquals(190, instance.pingLeft());
+    }
+
+    @Test
+    public void testScriptNegativeArgument() {
+        System.out.println("script negative argument");
+        instance.runScript(new A4jLandScript().forward(-20).stop());
+        assertEquals(220, instance.pingForward());
+    }
+
+    /*
+     Reconnect to a rover that takes a second per metre.
+     */
+    private void slowRover() throws Exception {
+        instance.disconnect();
+        instance = new A4jLandController(new A4jSimulatedSerial()
+                .setRoom(400, 300)
+                .setStart(200, 100, 90)
+                .setSpeed(100));
+        instance.applicationProps.setProperty("serialPort", "sim");
+        assertTrue(instance.connect());
+    }
+
+    /*
+     How a future failed (null if it didn't), unwrapped.
+     */
+    private static Throwable failure(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            return null;
+        } catch (CancellationException ex) {
+            return ex;
+        } catch (ExecutionException ex) {
+            return ex.getCause();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.autonomous4j.tracking;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import org.autonomous4j.tracking.A4jBlackBox.Action;
+import org.autonomous4j.tracking.A4jBlackBox.Durability;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Records movements with A4jBlackBox and checks the measured durations.
+ *
+ * @author mark
+ */
+public class A4jBlackBoxTest {
+    A4jBlackBox instance;
+    
+    public A4jBlackBoxTest() {
+    }
+    
+    @Before
+    public void setUp() {
+        instance = new A4jBlackBox(Durability.ON_SHUTDOWN, 0);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        instance.shutdown();
+        Files.deleteIfExists(Paths.get(A4jBlackBox.IN_PROGRESS));
+        Files.deleteIfExists(Paths.get(A4jBlackBox.LAST_FLIGHT));
+    }
+
+    @Test
+    public void testHeldMovement() throws Exception {
+        System.out.println("held movement");
+        instance.recordAction(Action.STAY);
+        // Held twice for 100 ms: each hold is on time, the movement lasts both
+        Thread.sleep(100);
+        instance.recordDuration(100);
+        Thread.sleep(100);
+        instance.recordDuration(100);
+        
+        assertEquals(2, instance.getStats().getTimedMovements());
+        assertTrue(instance.getStats().getMeanLatenessMillis(Action.STAY) < 25);
+        assertTrue(instance.getRecording().get(0).getDuration() >= 200);
+    }
+
+    @Test
+    public void testPublishQueueDropsOldest() throws Exception {
+        System.out.println("publish queue drops oldest");
+        // Accepts the connection but never answers: the publisher stalls
+        try (ServerSocket stalled = new ServerSocket(0)) {
+            instance.setBroker("tcp://localhost:" + stalled.getLocalPort());
+            for (int i = 0; i < 100; i++) {
+                instance.recordAction(Action.FORWARD, i);
+            }
+            List<String> queued = instance.getQueuedMessages();
+            assertEquals(64, queued.size());
+            assertTrue(queued.get(queued.size() - 1).endsWith(",99"));
+            assertFalse(queued.contains(Action.FORWARD.name() + ",0"));
+            assertTrue(instance.getStats().getPublishesDropped() >= 35);
+
+            long start = System.currentTimeMillis();
+            instance.shutdown();
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+
+    @Test
+    public void testShutdownWithoutBroker() throws Exception {
+        System.out.println("shutdown without broker");
+        // Nothing listens on the discarded port
+        int port;
+        try (ServerSocket closed = new ServerSocket(0)) {
+            port = closed.getLocalPort();
+        }
+        instance.setBroker("tcp://localhost:" + port);
+        for (int i = 0; i < 10; i++) {
+            instance.recordAction(Action.LEFT, i);
+        }
+        long start = System.currentTimeMillis();
+        instance.shutdown();
+        assertTrue(System.currentTimeMillis() - start < 3000);
+        assertEquals(0, instance.getStats().getPublished());
+        assertEquals(10, instance.getStats().getPublishesDropped());
+    }
+
+    @Test
+    public void testPerRecordFlush() throws Exception {
+        System.out.println("per record flush");
+        instance.shutdown();
+        instance = new A4jBlackBox(Durability.PER_RECORD, 0);
+        instance.recordAction(Action.FORWARD);
+        // Ends the forward movement and starts this one: two changes
+        instance.recordAction(Action.LEFT);
+        instance.recordDuration(50);
+        
+        // Each change is flushed on its own before the call returns
+        assertEquals(4, instance.getStats().getFlushes());
+        assertEquals(4, instance.getStats().getChangesFlushed());
+        assertEquals(1.0, instance.getStats().getChangesPerFlush(), 0);
+    }
+
+    @Test
+    public void testGroupCommitFlush() throws Exception {
+        System.out.println("group commit flush");
+        instance.shutdown();
+        instance = new A4jBlackBox(Durability.GROUP_COMMIT, 50);
+        instance.recordAction(Action.TAKEOFF);
+        instance.recordAction(Action.FORWARD);
+        instance.recordAction(Action.LAND);
+        
+        // Flushed together within the window, not by the recording thread
+        long deadline = System.currentTimeMillis() + 500;
+        while (instance.getStats().getChangesFlushed() < 5 
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(5, instance.getStats().getChangesFlushed());
+        assertTrue(instance.getStats().getFlushes() >= 1);
+        assertTrue(instance.getStats().getFlushes() <= 3);
+    }
+
+    @Test
+    public void testOnShutdownFlush() throws Exception {
+        System.out.println("on shutdown flush");
+        instance.recordAction(Action.FORWARD);
+        instance.recordAction(Action.LAND);
+        Thread.sleep(100);
+        assertEquals(0, instance.getStats().getFlushes());
+        
+        instance.shutdown();
+        assertEquals(1, instance.getStats().getFlushes());
+        assertEquals(3, instance.getStats().getChangesFlushed());
+    }
+}
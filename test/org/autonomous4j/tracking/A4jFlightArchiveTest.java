@@ -0,0 +1,126 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.autonomous4j.tracking;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.autonomous4j.tracking.A4jBlackBox.Action;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Records into an A4jFlightArchive of small segments and reads back by 
+ * movement number and by time.
+ *
+ * @author mark
+ */
+public class A4jFlightArchiveTest {
+    private static final int SEGMENT = 4;
+    private static final long SEGMENT_BYTES = 
+            A4jFlightLog.HEADER_SIZE + SEGMENT * A4jFlightLog.RECORD_SIZE;
+    Path directory;
+    
+    public A4jFlightArchiveTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("A4jFlightArchiveTest");
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testRollsSegments() throws IOException {
+        System.out.println("rolls segments");
+        A4jFlightArchive instance = A4jFlightArchive.open(directory, SEGMENT, Long.MAX_VALUE);
+        record(instance, 10);
+        assertEquals(3, instance.getSegmentCount());
+        assertEquals(0, instance.getFirstMovement());
+        assertEquals(10, instance.getNextMovement());
+        
+        // Across segment boundaries, from the middle of one
+        A4jFlightRecording flight = instance.load(3, 5);
+        assertEquals(5, flight.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(3 + i, flight.getSpeed(i));
+        }
+        // Fewer at the end of the archive
+        assertEquals(2, instance.load(8, 100).size());
+        instance.close();
+    }
+
+    @Test
+    public void testFind() throws IOException {
+        System.out.println("find");
+        A4jFlightArchive instance = A4jFlightArchive.open(directory, SEGMENT, Long.MAX_VALUE);
+        record(instance, 10);   // Movement n starts at 1000 * (n + 1)
+        assertEquals(0, instance.find(500));
+        assertEquals(0, instance.find(1000));
+        assertEquals(4, instance.find(5000));
+        assertEquals(5, instance.find(6999));
+        assertEquals(9, instance.find(99999));
+        
+        A4jFlightRecording flight = instance.loadFrom(7500, 2);
+        assertEquals(7000, flight.getTimestamp(0));
+        assertEquals(8000, flight.getTimestamp(1));
+        instance.close();
+    }
+
+    @Test
+    public void testSizeBudget() throws IOException {
+        System.out.println("size budget");
+        // Room for two full segments on disk
+        A4jFlightArchive instance = A4jFlightArchive.open(directory, SEGMENT, 2 * SEGMENT_BYTES);
+        record(instance, 13);
+        instance.close();
+        // 0-3 and 4-7 deleted; 8-11 and 12 kept
+        assertEquals(2, instance.getSegmentCount());
+        assertEquals(8, instance.getFirstMovement());
+        A4jFlightRecording flight = instance.load(0, 100);
+        assertEquals(5, flight.size());
+        assertEquals(8, flight.getSpeed(0));
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        System.out.println("reopen");
+        A4jFlightArchive instance = A4jFlightArchive.open(directory, SEGMENT, Long.MAX_VALUE);
+        record(instance, 6);
+        instance.close();
+        
+        // The index is rebuilt from disk and numbering carries on
+        instance = A4jFlightArchive.open(directory, SEGMENT, Long.MAX_VALUE);
+        assertEquals(2, instance.getSegmentCount());
+        assertEquals(6, instance.getNextMovement());
+        assertEquals(3, instance.find(4500));
+        instance.writable(99000).append(Action.LAND, 0, 0, 99000);
+        assertEquals(7, instance.getNextMovement());
+        A4jFlightRecording flight = instance.load(5, 10);
+        assertEquals(2, flight.size());
+        assertEquals(Action.LAND, flight.getAction(1));
+        instance.close();
+    }
+
+    private static void record(A4jFlightArchive archive, int movements) throws IOException {
+        for (int i = 0; i < movements; i++) {
+            long timestamp = 1000L * (i + 1);
+            archive.writable(timestamp).append(Action.FORWARD, i, 500, timestamp);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.autonomous4j.tracking;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.autonomous4j.tracking.A4jBlackBox.Action;
+import org.autonomous4j.tracking.A4jBlackBox.Movement;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Encodes flights in the compact format with A4jFlightCodec and decodes 
+ * them back.
+ *
+ * @author mark
+ */
+public class A4jFlightCodecTest {
+    Path log;
+    Path compact;
+    
+    public A4jFlightCodecTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        log = Files.createTempFile("A4jFlightCodecTest", ".afb");
+        compact = Files.createTempFile("A4jFlightCodecTest", ".afc");
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(log);
+        Files.deleteIfExists(compact);
+        Files.deleteIfExists(Paths.get(A4jBlackBox.IN_PROGRESS));
+        Files.deleteIfExists(Paths.get(A4jBlackBox.LAST_FLIGHT));
+        Files.deleteIfExists(Paths.get(A4jBlackBox.LAST_FLIGHT_COMPACT));
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        System.out.println("compact");
+        roundTrip(false);
+    }
+
+    @Test
+    public void testCompressed() throws IOException {
+        System.out.println("compressed");
+        roundTrip(true);
+    }
+
+    private void roundTrip(boolean compress) throws IOException {
+        Random random = new Random(7);
+        Action[] actions = Action.values();
+        long timestamp = System.currentTimeMillis();
+        try (A4jFlightLog flight = A4jFlightLog.create(log)) {
+            for (int i = 0; i < 1000; i++) {
+                timestamp += random.nextInt(3000);
+                flight.append(actions[random.nextInt(actions.length)], 
+                        random.nextInt(100), random.nextInt(3000), timestamp);
+            }
+        }
+        A4jFlightCodec.compact(log, compact, compress);
+        assertTrue(A4jFlightCodec.isCompact(compact));
+        assertFalse(A4jFlightCodec.isCompact(log));
+        assertTrue(Files.size(compact) < Files.size(log) / 3);
+        
+        try (A4jFlightLog.Reader reader = A4jFlightLog.read(log);
+                A4jFlightCodec.Decoder decoder = A4jFlightCodec.read(compact)) {
+            while (reader.next()) {
+                assertTrue(decoder.next());
+                assertEquals(reader.getAction(), decoder.getAction());
+                assertEquals(reader.getSpeed(), decoder.getSpeed());
+                assertEquals(reader.getDuration(), decoder.getDuration());
+                assertEquals(reader.getTimestamp(), decoder.getTimestamp());
+            }
+            assertFalse(decoder.next());
+        }
+    }
+
+    @Test
+    public void testChunks() throws IOException {
+        System.out.println("chunks");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (A4jFlightCodec.Encoder encoder = new A4jFlightCodec.Encoder(out, false)) {
+            for (int i = 0; i < 10; i++) {
+                encoder.write(Action.FORWARD, i, 100, 1000 * i);
+            }
+        }
+        try (A4jFlightCodec.Decoder decoder = 
+                new A4jFlightCodec.Decoder(new ByteArrayInputStream(out.toByteArray()))) {
+            assertEquals(4, decoder.read(4).size());
+            A4jFlightRecording chunk = decoder.read(4);
+            assertEquals(4, chunk.getSpeed(0));
+            assertEquals(7000, chunk.getTimestamp(3));
+            assertEquals(2, decoder.read(4).size());
+            assertEquals(0, decoder.read(4).size());
+        }
+    }
+
+    @Test
+    public void testActionCodes() throws IOException {
+        System.out.println("action codes");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (A4jFlightCodec.Encoder encoder = new A4jFlightCodec.Encoder(out, false)) {
+            encoder.write(Action.LAND, 0, 0, 0);
+        }
+        // Code byte, three single-byte varints, END
+        byte[] flight = out.toByteArray();
+        assertEquals(Action.LAND.getCode(), flight[flight.length - 5]);
+        
+        // A code the dictionary leaves empty (retired) doesn't decode
+        flight[flight.length - 5] = (byte) (Action.values().length + 1);
+        try (A4jFlightCodec.Decoder decoder = 
+                new A4jFlightCodec.Decoder(new ByteArrayInputStream(flight))) {
+            decoder.next();
+            fail("Unknown code decoded");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testReplayFlight() throws IOException {
+        System.out.println("replay flight");
+        try (A4jFlightLog flight = A4jFlightLog.create(log)) {
+            for (int i = 0; i < 10; i++) {
+                flight.append(Action.FORWARD, i, 100, 1000 * i);
+            }
+        }
+        A4jFlightCodec.compact(log, compact, true);
+        A4jBlackBox blackBox = new A4jBlackBox(A4jBlackBox.Durability.ON_SHUTDOWN, 0);
+        try {
+            for (Path file : new Path[] {log, compact}) {
+                List<List<Movement>> chunks = new ArrayList<>();
+                blackBox.replayFlight(file, 4, chunks::add);
+                assertEquals(3, chunks.size());
+                assertEquals(4, chunks.get(0).size());
+                assertEquals(4, chunks.get(1).get(0).getSpeed());
+                assertEquals(2, chunks.get(2).size());
+                assertEquals(9, chunks.get(2).get(1).getSpeed());
+            }
+        } finally {
+            blackBox.shutdown();
+        }
+    }
+
+    @Test
+    public void testSignedValues() throws IOException {
+        System.out.println("signed values");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (A4jFlightCodec.Encoder encoder = new A4jFlightCodec.Encoder(out, false)) {
+            encoder.write(Action.UP, -5, Long.MAX_VALUE, 5000);
+            // Earlier than the one before (negative delta)
+            encoder.write(Action.DOWN, Integer.MIN_VALUE, -1, 4000);
+        }
+        try (A4jFlightCodec.Decoder decoder = 
+                new A4jFlightCodec.Decoder(new ByteArrayInputStream(out.toByteArray()))) {
+            assertTrue(decoder.next());
+            assertEquals(-5, decoder.getSpeed());
+            assertEquals(Long.MAX_VALUE, decoder.getDuration());
+            assertTrue(decoder.next());
+            assertEquals(Integer.MIN_VALUE, decoder.getSpeed());
+            assertEquals(-1, decoder.getDuration());
+            assertEquals(4000, decoder.getTimestamp());
+        }
+    }
+
+    @Test
+    public void testCutOff() throws IOException {
+        System.out.println("cut off");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        A4jFlightCodec.Encoder encoder = new A4jFlightCodec.Encoder(out, false);
+        encoder.write(Action.FORWARD, 20, 100, 1000);
+        encoder.write(Action.LEFT, 20, 100, 2000);
+        encoder.close();
+        // Lose the END byte: both movements still read
+        byte[] flight = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+        try (A4jFlightCodec.Decoder decoder = 
+                new A4jFlightCodec.Decoder(new ByteArrayInputStream(flight))) {
+            assertEquals(2, decoder.read(10).size());
+        }
+        // Lose half the last movement too: the first still reads
+        flight = Arrays.copyOf(out.toByteArray(), out.size() - 3);
+        try (A4jFlightCodec.Decoder decoder = 
+                new A4jFlightCodec.Decoder(new ByteArrayInputStream(flight))) {
+            assertTrue(decoder.next());
+            assertEquals(Action.FORWARD, decoder.getAction());
+            decoder.next();
+            fail("Half a movement decoded");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testBlackBoxKeepsCompactFlight() throws IOException {
+        System.out.println("black box keeps compact flight");
+        A4jBlackBox box = new A4jBlackBox(A4jBlackBox.Durability.ON_SHUTDOWN, 0)
+                .setFlightFormat(A4jBlackBox.FlightFormat.COMPRESSED);
+        box.recordAction(Action.TAKEOFF);
+        box.recordAction(Action.FORWARD, 30);
+        box.recordAction(Action.LAND);
+        box.shutdown();
+        
+        assertEquals(Paths.get(A4jBlackBox.LAST_FLIGHT_COMPACT), box.getLastFlight());
+        assertTrue(A4jFlightCodec.isCompact(box.getLastFlight()));
+        assertFalse(Files.exists(Paths.get(A4jBlackBox.LAST_FLIGHT)));
+        List<Movement> flight = box.loadFlight(box.getLastFlight());
+        assertEquals(3, flight.size());
+        assertEquals(Action.FORWARD, flight.get(1).getAction());
+        assertEquals(30, flight.get(1).getSpeed());
+    }
+}
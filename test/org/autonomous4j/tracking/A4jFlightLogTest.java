@@ -0,0 +1,168 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.autonomous4j.tracking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.autonomous4j.tracking.A4jBlackBox.Action;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Writes flight logs with A4jFlightLog and reads them back.
+ *
+ * @author mark
+ */
+public class A4jFlightLogTest {
+    Path file;
+    
+    public A4jFlightLogTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("A4jFlightLogTest", ".afb");
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        System.out.println("round trip");
+        try (A4jFlightLog log = A4jFlightLog.create(file)) {
+            assertEquals(0, log.append(Action.TAKEOFF, 0, 0, 1000));
+            assertEquals(1, log.append(Action.FORWARD, 20, 0, 2000));
+            log.setDuration(1, 1500);
+            assertEquals(2, log.append(Action.LAND, 0, 0, 4000));
+            assertEquals(3, log.size());
+        }
+        // Trimmed to the records written
+        assertEquals(A4jFlightLog.HEADER_SIZE + 3 * A4jFlightLog.RECORD_SIZE, Files.size(file));
+        
+        try (A4jFlightLog.Reader reader = A4jFlightLog.read(file)) {
+            assertEquals(3, reader.size());
+            assertTrue(reader.next());
+            assertEquals(Action.TAKEOFF, reader.getAction());
+            assertEquals(1000, reader.getTimestamp());
+            assertTrue(reader.next());
+            assertEquals(Action.FORWARD, reader.getAction());
+            assertEquals(20, reader.getSpeed());
+            assertEquals(1500, reader.getDuration());
+            assertTrue(reader.next());
+            assertEquals(Action.LAND, reader.getAction());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void testGrows() throws IOException {
+        System.out.println("grows");
+        try (A4jFlightLog log = A4jFlightLog.create(file, 2)) {
+            for (int i = 0; i < 100; i++) {
+                log.append(Action.values()[i % Action.values().length], i, i, i);
+            }
+        }
+        try (A4jFlightLog.Reader reader = A4jFlightLog.read(file)) {
+            assertEquals(100, reader.size());
+            reader.seek(99);
+            assertEquals(99, reader.getSpeed());
+            assertEquals(Action.values()[99 % Action.values().length], reader.getAction());
+        }
+    }
+
+    @Test
+    public void testForce() throws IOException {
+        System.out.println("force");
+        try (A4jFlightLog log = A4jFlightLog.create(file)) {
+            assertEquals(0, log.force());
+            log.append(Action.TAKEOFF, 0, 0, 1000);
+            log.append(Action.FORWARD, 20, 0, 2000);
+            assertEquals(2, log.force());
+            // Nothing new since
+            assertEquals(0, log.force());
+            log.setDuration(1, 1500);
+            assertEquals(1, log.force());
+        }
+    }
+
+    @Test
+    public void testFind() throws IOException {
+        System.out.println("find");
+        try (A4jFlightLog log = A4jFlightLog.create(file)) {
+            log.append(Action.FORWARD, 20, 1000, 1000);
+            log.append(Action.LEFT, 20, 1000, 2000);
+            log.append(Action.FORWARD, 20, 1000, 3000);
+        }
+        try (A4jFlightLog.Reader reader = A4jFlightLog.read(file)) {
+            assertEquals(-1, reader.find(999));
+            assertEquals(0, reader.find(1000));
+            assertEquals(1, reader.find(2500));
+            assertEquals(2, reader.find(9000));
+        }
+    }
+
+    @Test
+    public void testActionCodes() {
+        System.out.println("action codes");
+        // Stored in flight logs: these must never change
+        assertEquals(0, Action.FORWARD.getCode());
+        assertEquals(1, Action.BACKWARD.getCode());
+        assertEquals(2, Action.LEFT.getCode());
+        assertEquals(3, Action.RIGHT.getCode());
+        assertEquals(4, Action.UP.getCode());
+        assertEquals(5, Action.DOWN.getCode());
+        assertEquals(6, Action.STAY.getCode());
+        assertEquals(7, Action.TAKEOFF.getCode());
+        assertEquals(8, Action.LAND.getCode());
+        assertEquals(9, Action.LIGHTS.getCode());
+        for (Action action : Action.values()) {
+            assertEquals(action, Action.fromCode(action.getCode()));
+        }
+        assertNull(Action.fromCode(100));
+        assertNull(Action.fromCode(-1));
+    }
+
+    @Test
+    public void testUnknownActionCode() throws IOException {
+        System.out.println("unknown action code");
+        try (A4jFlightLog log = A4jFlightLog.create(file)) {
+            log.append(Action.FORWARD, 20, 1000, 1000);
+        }
+        // As if written by a release with more actions
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {100}), A4jFlightLog.HEADER_SIZE + 20);
+        }
+        try (A4jFlightLog.Reader reader = A4jFlightLog.read(file)) {
+            assertTrue(reader.next());
+            assertEquals(20, reader.getSpeed());
+            reader.getAction();
+            fail("Unknown action code accepted");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testNotAFlightLog() throws IOException {
+        System.out.println("not a flight log");
+        Files.write(file, "Not a flight log at all".getBytes("US-ASCII"));
+        try {
+            A4jFlightLog.read(file).close();
+            fail("Read a file that isn't a flight log");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.autonomous4j.tracking;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Random;
+import org.autonomous4j.tracking.A4jBlackBox.Action;
+import org.autonomous4j.tracking.A4jBlackBox.Movement;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Stores movements in an A4jFlightRecording and reads them back, column by 
+ * column and through Movement views.
+ *
+ * @author mark
+ */
+public class A4jFlightRecordingTest {
+    A4jFlightRecording instance;
+    
+    public A4jFlightRecordingTest() {
+    }
+    
+    @Before
+    public void setUp() {
+        instance = new A4jFlightRecording(2);
+    }
+    
+    @After
+    public void tearDown() {
+    }
+
+    @Test
+    public void testAddAndColumns() {
+        System.out.println("add and columns");
+        assertEquals(0, instance.add(Action.TAKEOFF, 0, 0, 1000));
+        assertEquals(1, instance.add(Action.FORWARD, 20, 1500, 2000));
+        // Past the initial capacity of 2
+        assertEquals(2, instance.add(Action.LAND, 0, 0, 4000));
+        assertEquals(3, instance.size());
+        
+        assertEquals(Action.FORWARD, instance.getAction(1));
+        assertEquals(20, instance.getSpeed(1));
+        assertEquals(1500, instance.getDuration(1));
+        assertEquals(2000, instance.getTimestamp(1));
+        assertEquals(Action.LAND, instance.getAction(2));
+    }
+
+    @Test
+    public void testMovementViews() {
+        System.out.println("movement views");
+        instance.add(Action.FORWARD, 20, 0, 2000);
+        Movement movement = instance.get(0);
+        assertEquals(Action.FORWARD, movement.getAction());
+        assertEquals(2000, movement.getTimestamp());
+        
+        // A view writes through to the recording
+        movement.setDuration(750);
+        movement.setAction(Action.LEFT, 30);
+        assertEquals(750, instance.getDuration(0));
+        assertEquals(Action.LEFT, instance.getAction(0));
+        assertEquals(30, instance.getSpeed(0));
+        assertEquals(750, instance.get(0).getDuration());
+    }
+
+    @Test
+    public void testAddMovement() {
+        System.out.println("add movement");
+        assertTrue(instance.add(new Movement(Action.RIGHT, 10, 500)));
+        assertEquals(1, instance.size());
+        assertEquals(Action.RIGHT, instance.getAction(0));
+        assertEquals(10, instance.getSpeed(0));
+        assertEquals(500, instance.getDuration(0));
+    }
+
+    @Test
+    public void testIndexChecked() {
+        System.out.println("index checked");
+        instance.add(Action.FORWARD, 20, 0, 2000);
+        instance.add(Action.FORWARD, 20, 0, 3000);
+        instance.clear();
+        assertEquals(0, instance.size());
+        try {
+            // Still within the arrays, but no longer part of the recording
+            instance.getAction(1);
+            fail("Read past the end of the recording");
+        } catch (IndexOutOfBoundsException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testIteratorFailsFast() {
+        System.out.println("iterator fails fast");
+        instance.add(Action.FORWARD, 20, 0, 2000);
+        instance.add(Action.FORWARD, 20, 0, 3000);
+        Iterator<Movement> it = instance.iterator();
+        it.next();
+        instance.add(Action.LAND, 0, 0, 4000);
+        try {
+            it.next();
+            fail("Iterator missed a concurrent add");
+        } catch (ConcurrentModificationException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testDisplacement() {
+        System.out.println("displacement");
+        instance.add(Action.TAKEOFF, 0, 0, 1000);
+        instance.add(Action.FORWARD, 20, 1000, 2000);  // x +200
+        instance.add(Action.LEFT, 10, 500, 3000);      // y -50
+        instance.add(Action.UP, 30, 100, 4000);        // z +30
+        instance.add(Action.BACKWARD, 20, 250, 5000);  // x -50
+        instance.add(Action.STAY, 20, 5000, 6000);     // Not a move
+        assertEquals(150, instance.getDisplacementX());
+        assertEquals(-50, instance.getDisplacementY());
+        assertEquals(30, instance.getDisplacementZ());
+    }
+
+    @Test
+    public void testDisplacementFollowsChanges() {
+        System.out.println("displacement follows changes");
+        // Recorded as it starts (no duration yet), measured when it ends
+        int index = instance.add(Action.FORWARD, 20, 0, 2000);
+        assertEquals(0, instance.getDisplacementX());
+        instance.setDuration(index, 1000);
+        assertEquals(200, instance.getDisplacementX());
+        
+        // Changing the action moves its share to the other axis
+        instance.get(index).setAction(Action.RIGHT, 10);
+        assertEquals(0, instance.getDisplacementX());
+        assertEquals(100, instance.getDisplacementY());
+        
+        instance.clear();
+        assertEquals(0, instance.getDisplacementY());
+    }
+
+    @Test
+    public void testDisplacementMatchesRecount() {
+        System.out.println("displacement matches recount");
+        Random random = new Random(42);
+        Action[] actions = Action.values();
+        for (int i = 0; i < 1000; i++) {
+            int index = instance.add(actions[random.nextInt(actions.length)], 
+                    random.nextInt(100), random.nextInt(5000), i);
+            if (random.nextBoolean()) {
+                instance.setDuration(index, random.nextInt(5000));
+            }
+        }
+        
+        long x = 0, y = 0, z = 0;
+        for (Movement movement : instance) {
+            long distance = movement.getSpeed() * movement.getDuration() / 100;
+            switch (movement.getAction()) {
+                case FORWARD:  x += distance; break;
+                case BACKWARD: x -= distance; break;
+                case RIGHT:    y += distance; break;
+                case LEFT:     y -= distance; break;
+                case UP:       z += distance; break;
+                case DOWN:     z -= distance; break;
+                default:       break;
+            }
+        }
+        assertEquals(x, instance.getDisplacementX());
+        assertEquals(y, instance.getDisplacementY());
+        assertEquals(z, instance.getDisplacementZ());
+    }
+}